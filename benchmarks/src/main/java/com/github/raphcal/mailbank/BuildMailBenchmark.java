@@ -0,0 +1,108 @@
+package com.github.raphcal.mailbank;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Assembles and decodes a mail from its header and body lines, as done at the
+ * end of the DATA of each mail given to a <code>SmtpHandler</code>.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildMailBenchmark {
+    private static final String TEXT = "Le cœur a ses raisons que la raison ne connaît point. ";
+    private static final int LINE_LENGTH = 76;
+
+    @Param({"1024", "102400", "10485760"})
+    private int bodySize;
+
+    @Param({"7bit", "quoted-printable"})
+    private String transferEncoding;
+
+    @Param({"false", "true"})
+    private boolean lazyDecoding;
+
+    private final List<String> recipients = Collections.singletonList("<recipient@example.com>");
+    private final List<ByteBuffer> headerLines = new ArrayList<>();
+    private final List<ByteBuffer> bodyLines = new ArrayList<>();
+
+    private MailAssembler assembler;
+    private Mail mail;
+
+    @Setup
+    public void setUp() {
+        final MailBankConfiguration configuration = MailBankConfiguration.builder()
+                .memoryThreshold(16 * 1024 * 1024)
+                .lazyDecoding(lazyDecoding)
+                .jmxEnabled(false)
+                .build();
+        assembler = new MailAssembler(received -> mail = received, configuration);
+
+        headerLines.add(header("Subject: benchmark"));
+        headerLines.add(header("Content-Type: text/plain; charset=UTF-8"));
+        headerLines.add(header("Content-Transfer-Encoding: " + transferEncoding));
+
+        final boolean quotedPrintable = "quoted-printable".equals(transferEncoding);
+        final StringBuilder line = new StringBuilder();
+        int size = 0;
+        while (size < bodySize) {
+            for (final byte b : TEXT.getBytes(StandardCharsets.UTF_8)) {
+                final String encoded = quotedPrintable && (b < 0 || b == '=')
+                        ? String.format("=%02X", b & 0xFF)
+                        : String.valueOf((char) b);
+                if (line.length() + encoded.length() > LINE_LENGTH - 1) {
+                    final ByteBuffer bodyLine = line(line.append(quotedPrintable ? "=" : "").toString());
+                    bodyLines.add(bodyLine);
+                    size += bodyLine.remaining();
+                    line.setLength(0);
+                }
+                line.append(encoded);
+            }
+        }
+    }
+
+    @Benchmark
+    public String build() {
+        final MailListener listener = assembler.mailStarted("<sender@example.com>", recipients);
+        for (final ByteBuffer line : headerLines) {
+            ((Buffer) line).rewind();
+            listener.headerLine(line);
+        }
+        for (final ByteBuffer line : bodyLines) {
+            ((Buffer) line).rewind();
+            listener.bodyChunk(line);
+        }
+        listener.endOfMessage().run();
+        return mail.getContent();
+    }
+
+    private static ByteBuffer header(String line) {
+        return ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static ByteBuffer line(String line) {
+        return ByteBuffer.wrap((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,149 @@
+package com.github.raphcal.mailbank;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sends mails to a MailBank server on the loopback interface. Each benchmark
+ * thread keeps one session open and pipelines the commands of each mail.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class EndToEndBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ServerState {
+        @Param({"1024", "102400"})
+        private int bodySize;
+
+        private MailBank mailBank;
+        private InetSocketAddress endpoint;
+        private byte[] envelope;
+        private byte[] content;
+
+        @Setup
+        public void start() {
+            final MailBankConfiguration configuration = MailBankConfiguration.builder()
+                    .jmxEnabled(false)
+                    .build();
+            mailBank = new MailBank(2525, mail -> mail.getContent(), configuration);
+            mailBank.start();
+            endpoint = new InetSocketAddress("127.0.0.1", mailBank.getEndpoint().getPort());
+
+            envelope = ("MAIL FROM:<sender@example.com>\r\n"
+                    + "RCPT TO:<recipient@example.com>\r\n"
+                    + "DATA\r\n").getBytes(StandardCharsets.US_ASCII);
+
+            final StringBuilder builder = new StringBuilder("Subject: benchmark\r\n\r\n");
+            final char[] line = new char[76];
+            Arrays.fill(line, 'x');
+            while (builder.length() < bodySize) {
+                builder.append(line).append("\r\n");
+            }
+            builder.append(".\r\n");
+            content = builder.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @TearDown
+        public void stop() {
+            mailBank.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Session {
+        private Socket socket;
+        private InputStream input;
+        private OutputStream output;
+
+        @Setup(Level.Trial)
+        public void connect(ServerState server) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(server.endpoint);
+            input = new BufferedInputStream(socket.getInputStream());
+            output = new BufferedOutputStream(socket.getOutputStream());
+            readReply(this);
+            output.write("EHLO benchmark\r\n".getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+            readReply(this);
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            output.write("QUIT\r\n".getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public int sendMail(ServerState server, Session session) throws IOException {
+        session.output.write(server.envelope);
+        session.output.flush();
+        readReply(session);
+        readReply(session);
+        readReply(session);
+        session.output.write(server.content);
+        session.output.flush();
+        return readReply(session);
+    }
+
+    /**
+     * Reads a whole reply, including every line of a multiline reply.
+     *
+     * @return The reply code.
+     */
+    private static int readReply(Session session) throws IOException {
+        while (true) {
+            final int code = readDigit(session) * 100 + readDigit(session) * 10 + readDigit(session);
+            final int separator = session.input.read();
+            int read = separator;
+            while (read != '\n') {
+                read = session.input.read();
+                if (read < 0) {
+                    throw new IOException("Connection closed");
+                }
+            }
+            if (separator != '-') {
+                return code;
+            }
+        }
+    }
+
+    private static int readDigit(Session session) throws IOException {
+        final int read = session.input.read();
+        if (read < '0' || read > '9') {
+            throw new IOException("Unexpected reply");
+        }
+        return read - '0';
+    }
+}
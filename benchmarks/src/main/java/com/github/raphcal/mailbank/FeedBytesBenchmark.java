@@ -0,0 +1,130 @@
+package com.github.raphcal.mailbank;
+
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses a whole SMTP session, with a 64 KB mail, read by chunks of
+ * <code>readSize</code> bytes like the reactor does.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FeedBytesBenchmark {
+    private static final int BODY_SIZE = 64 * 1024;
+
+    @Param({"16", "78", "998"})
+    private int lineLength;
+
+    @Param({"64", "1024", "65536"})
+    private int readSize;
+
+    private final InetSocketAddress endpoint = InetSocketAddress.createUnresolved("localhost", 2525);
+    private final MailBankConfiguration configuration = MailBankConfiguration.builder()
+            .jmxEnabled(false)
+            .build();
+    private final DiscardingHandler handler = new DiscardingHandler();
+
+    private byte[] session;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder builder = new StringBuilder()
+                .append("EHLO benchmark\r\n")
+                .append("MAIL FROM:<sender@example.com>\r\n")
+                .append("RCPT TO:<recipient@example.com>\r\n")
+                .append("DATA\r\n")
+                .append("Subject: benchmark\r\n")
+                .append("\r\n");
+        final char[] line = new char[lineLength];
+        Arrays.fill(line, 'x');
+        for (int size = 0; size < BODY_SIZE; size += lineLength + 2) {
+            builder.append(line).append("\r\n");
+        }
+        builder.append(".\r\nQUIT\r\n");
+        session = builder.toString().getBytes(StandardCharsets.US_ASCII);
+        buffer = ByteBuffer.allocate(readSize);
+    }
+
+    @Benchmark
+    public long feedBytes() {
+        final MailBuilder mailBuilder = new MailBuilder(endpoint, handler, configuration);
+        ((Buffer) buffer).clear();
+        int offset = 0;
+        long replies = 0;
+        while (offset < session.length) {
+            final int count = Math.min(buffer.remaining(), session.length - offset);
+            buffer.put(session, offset, count);
+            offset += count;
+            ((Buffer) buffer).flip();
+            mailBuilder.feedBytes(buffer);
+            while (mailBuilder.isMailComplete()) {
+                final Runnable delivery = mailBuilder.endOfMessage();
+                if (delivery != null) {
+                    delivery.run();
+                }
+                mailBuilder.mailAccepted();
+                mailBuilder.feedBytes(buffer);
+            }
+            buffer.compact();
+            while (mailBuilder.pollResponse() != null) {
+                replies++;
+            }
+        }
+        return replies + handler.bytes;
+    }
+
+    /**
+     * Counts the received bytes without keeping them.
+     */
+    private static class DiscardingHandler implements StreamingSmtpHandler, MailListener {
+        private long bytes;
+
+        @Override
+        public MailListener mailStarted(String from, List<String> recipients) {
+            return this;
+        }
+
+        @Override
+        public void headerLine(ByteBuffer line) {
+            bytes += line.remaining();
+        }
+
+        @Override
+        public void header(String name, String value) {
+            bytes += value.length();
+        }
+
+        @Override
+        public void bodyChunk(ByteBuffer chunk) {
+            bytes += chunk.remaining();
+        }
+
+        @Override
+        public Runnable endOfMessage() {
+            return null;
+        }
+    }
+}
@@ -1,16 +1,41 @@
 package com.github.raphcal.mailbank;
 
 import java.nio.ByteBuffer;
-import lombok.Value;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import lombok.Data;
 
 /**
  *
  * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
  */
-@Value
+@Data
 public class Attachment {
-    private static final int BUFFER_SIZE = 1024;
+    private final MailBuilder mailBuilder;
 
-    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-    private MailBuilder mailBuilder;
+    /**
+     * Listener which accepted the connection.
+     */
+    private final Listener listener;
+
+    /**
+     * Read buffer borrowed from the pool, <code>null</code> while every read
+     * byte has been consumed.
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Replies waiting to be written, the first one may be partially written.
+     */
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+
+    /**
+     * Delivery waiting for a free slot in the handler queue.
+     */
+    private Runnable pendingDelivery;
+
+    // Times in milliseconds used to check the timeouts of the connection.
+    private long connectedAt;
+    private long lastReadAt;
+    private long lastReplyAt;
 }
@@ -0,0 +1,26 @@
+package com.github.raphcal.mailbank;
+
+import java.util.List;
+
+/**
+ * Receives the mails by batches, to replace a round trip per mail by a bulk
+ * insert.
+ * <p>
+ * Batches are grouped across every connection by a collector thread: a
+ * batch is given to the handler when it reaches
+ * <code>MailBankConfiguration.batchMaxCount</code> mails,
+ * <code>batchMaxBytes</code> bytes or when <code>batchLinger</code> elapsed
+ * after its first mail. Calls are made one at a time, by the collector
+ * thread.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public interface BatchSmtpHandler {
+    /**
+     * Called with the next batch of received mails.
+     *
+     * @param mails Mails in the order they were received, never empty. Their
+     * bodies are closed once this call returns, unless retained.
+     */
+    void mailsReceived(List<Mail> mails);
+}
@@ -0,0 +1,336 @@
+package com.github.raphcal.mailbank;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Serves one connection with blocking streams, from its own thread. Used by
+ * the <code>BLOCKING</code> transport.
+ * <p>
+ * The session logic is the one of <code>MailBuilder</code>, like with the
+ * selector transport: only the way bytes are read and written differs.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@Slf4j
+class BlockingSession implements Runnable {
+    private static final int END_OF_STREAM = -1;
+    /**
+     * Longest wait for a free slot in the handler queue before checking the
+     * connection again.
+     */
+    private static final long CAPACITY_WAIT = 100;
+
+    private final SocketChannel channel;
+    private final MailBuilder mailBuilder;
+    private final Listener listener;
+    private final HandlerDispatcher dispatcher;
+    private final ConnectionLimiter limiter;
+    private final Metrics metrics;
+    private final MailBankConfiguration.Backpressure backpressure;
+    private final int commandBufferSize;
+    private final int dataBufferSize;
+    private final long idleTimeout;
+    private final long commandTimeout;
+    private final long sessionTimeout;
+
+    private ByteBuffer buffer;
+
+    // Drain requests, given by another thread. The session thread tells
+    // with waitingForCommand when it may be woken up by closing the input.
+    private volatile boolean draining;
+    private volatile boolean shuttingDown;
+    private volatile boolean waitingForCommand;
+    private volatile boolean inputClosed;
+    /**
+     * Set once the mail in progress has been aborted and the connection
+     * released.
+     */
+    private final AtomicBoolean ended = new AtomicBoolean();
+
+    // Times in milliseconds used to check the timeouts of the connection.
+    private long connectedAt;
+    private long lastReadAt;
+    private long lastReplyAt;
+
+    BlockingSession(SocketChannel channel, MailBuilder mailBuilder, Listener listener) {
+        final MailBankConfiguration configuration = listener.getConfiguration();
+        this.channel = channel;
+        this.mailBuilder = mailBuilder;
+        this.listener = listener;
+        this.dispatcher = listener.getDispatcher();
+        this.limiter = listener.getLimiter();
+        this.metrics = listener.getMetrics();
+        this.backpressure = configuration.getBackpressure();
+        this.commandBufferSize = configuration.getCommandBufferSize();
+        this.dataBufferSize = Math.max(configuration.getDataBufferSize(), commandBufferSize);
+        this.idleTimeout = configuration.getIdleTimeout();
+        this.commandTimeout = configuration.getCommandTimeout();
+        this.sessionTimeout = configuration.getSessionTimeout();
+        this.buffer = ByteBuffer.allocate(commandBufferSize);
+    }
+
+    @Override
+    public void run() {
+        final Socket socket = channel.socket();
+        try {
+            final InputStream input = socket.getInputStream();
+            final BufferedOutputStream output = new BufferedOutputStream(socket.getOutputStream(), commandBufferSize);
+            final WritableByteChannel replies = Channels.newChannel(output);
+            connectedAt = lastReadAt = lastReplyAt = now();
+
+            writeReplies(replies, output);
+            while (!mailBuilder.isDone()) {
+                if (draining) {
+                    if (shuttingDown || inputClosed) {
+                        mailBuilder.shutdown();
+                    } else {
+                        mailBuilder.drain();
+                    }
+                    writeReplies(replies, output);
+                    if (mailBuilder.isDone()) {
+                        break;
+                    }
+                }
+                waitingForCommand = !mailBuilder.isInTransaction();
+                if (waitingForCommand && draining) {
+                    continue;
+                }
+                final boolean read = read(socket, input);
+                waitingForCommand = false;
+                if (!read) {
+                    if (timedOut(replies, output)) {
+                        break;
+                    }
+                    continue;
+                }
+                process();
+                writeReplies(replies, output);
+            }
+        } catch (IOException ex) {
+            log.debug("Closing connection " + channel + " after an I/O error", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Ends the session once its current mail has been answered. May be
+     * called from any thread.
+     */
+    void drain() {
+        draining = true;
+        if (waitingForCommand) {
+            wakeUp();
+        }
+    }
+
+    /**
+     * Ends the session now with a 421 reply, aborting the current mail. May
+     * be called from any thread.
+     */
+    void shutdown() {
+        shuttingDown = true;
+        draining = true;
+        wakeUp();
+    }
+
+    /**
+     * Unblocks the session thread waiting for the client: its read ends as
+     * if the client stopped sending.
+     */
+    private void wakeUp() {
+        inputClosed = true;
+        try {
+            channel.shutdownInput();
+        } catch (IOException ex) {
+            log.debug("Unable to wake up session " + channel, ex);
+        }
+    }
+
+    /**
+     * Closes the connection. May be called from any thread: the session
+     * thread, woken up by the closed socket, aborts the mail in progress and
+     * releases the connection itself.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            log.debug("Unable to close " + channel, ex);
+        }
+    }
+
+    /**
+     * Aborts the mail in progress, releases the connection and closes it.
+     * Must be called by the thread running the session, or by the accepting
+     * thread if the session never ran.
+     */
+    void end() {
+        if (ended.compareAndSet(false, true)) {
+            mailBuilder.abort();
+            limiter.release(channel);
+            close();
+            listener.getSessions().remove(this);
+        }
+    }
+
+    /**
+     * Reads the next bytes sent by the client.
+     *
+     * @return <code>true</code> if bytes have been read, <code>false</code>
+     * if the read timed out or has been interrupted by a drain.
+     * @throws IOException If an I/O error occurs or at the end of the stream.
+     */
+    private boolean read(Socket socket, InputStream input) throws IOException {
+        ensureCapacity();
+        final long deadline = nextDeadline();
+        socket.setSoTimeout(deadline == Long.MAX_VALUE ? 0 : (int) Math.min(Integer.MAX_VALUE, Math.max(1, deadline - now())));
+        final int bytes;
+        try {
+            bytes = input.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } catch (SocketTimeoutException ex) {
+            return false;
+        }
+        if (bytes == END_OF_STREAM) {
+            if (inputClosed) {
+                return false;
+            }
+            throw new IOException("Connection closed by the client");
+        }
+        ((Buffer) buffer).position(buffer.position() + bytes);
+        lastReadAt = now();
+        metrics.bytesReceived.add(bytes);
+        return true;
+    }
+
+    /**
+     * Uses a larger buffer while the content of a mail is received and a
+     * small one for commands.
+     */
+    private void ensureCapacity() {
+        final int size = mailBuilder.isReceivingContent() ? dataBufferSize : commandBufferSize;
+        if (buffer.capacity() != size && buffer.position() <= size) {
+            final ByteBuffer resized = ByteBuffer.allocate(size);
+            ((Buffer) buffer).flip();
+            resized.put(buffer);
+            buffer = resized;
+        }
+    }
+
+    /**
+     * Feeds the read bytes to the session and delivers every mail they
+     * complete.
+     */
+    private void process() throws InterruptedException {
+        ((Buffer) buffer).flip();
+        try {
+            mailBuilder.feedBytes(buffer);
+            while (mailBuilder.isMailComplete()) {
+                deliver();
+                mailBuilder.feedBytes(buffer);
+            }
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    private void deliver() throws InterruptedException {
+        Runnable delivery;
+        try {
+            delivery = mailBuilder.endOfMessage();
+        } catch (RuntimeException ex) {
+            log.error("Unable to complete received mail", ex);
+            mailBuilder.mailFailed();
+            return;
+        }
+        if (delivery == null) {
+            mailBuilder.mailAccepted();
+            return;
+        }
+        delivery = metrics.timed(delivery, mailBuilder.getDataEndedAt());
+        while (!dispatcher.dispatch(delivery)) {
+            if (backpressure == MailBankConfiguration.Backpressure.REJECT) {
+                mailBuilder.mailRejected();
+                return;
+            }
+            if (shuttingDown || !channel.isOpen()) {
+                // The mail is abandoned, the session ends with a 421 reply.
+                mailBuilder.shutdown();
+                return;
+            }
+            // The connection is not read until the mail can be queued.
+            dispatcher.awaitCapacity(CAPACITY_WAIT, TimeUnit.MILLISECONDS);
+        }
+        mailBuilder.mailAccepted();
+    }
+
+    private void writeReplies(WritableByteChannel replies, BufferedOutputStream output) throws IOException {
+        ByteBuffer response;
+        boolean written = false;
+        while ((response = mailBuilder.pollResponse()) != null) {
+            if (log.isTraceEnabled()) {
+                log.trace("> " + StandardCharsets.US_ASCII.decode(response.duplicate()));
+            }
+            replies.write(response);
+            written = true;
+        }
+        if (written) {
+            output.flush();
+            lastReplyAt = now();
+        }
+    }
+
+    /**
+     * Sends a 421 reply if one of the timeouts of the connection expired.
+     *
+     * @return <code>true</code> if the connection timed out and has to be
+     * closed.
+     */
+    private boolean timedOut(WritableByteChannel replies, BufferedOutputStream output) {
+        if (nextDeadline() > now()) {
+            return false;
+        }
+        log.debug("Connection " + channel + " timed out");
+        metrics.connectionsTimedOut.increment();
+        try {
+            replies.write(MailBuilder.TIMEOUT.duplicate());
+            output.flush();
+        } catch (IOException ex) {
+            log.debug("Unable to send timeout reply to " + channel, ex);
+        }
+        return true;
+    }
+
+    private long nextDeadline() {
+        long deadline = Long.MAX_VALUE;
+        if (sessionTimeout > 0) {
+            deadline = connectedAt + sessionTimeout;
+        }
+        if (idleTimeout > 0) {
+            deadline = Math.min(deadline, lastReadAt + idleTimeout);
+        }
+        if (commandTimeout > 0 && !mailBuilder.isReceivingContent()) {
+            deadline = Math.min(deadline, lastReplyAt + commandTimeout);
+        }
+        return deadline;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -0,0 +1,191 @@
+package com.github.raphcal.mailbank;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Accumulates the body of the mail being received. The body is kept in
+ * memory until it reaches <code>threshold</code> bytes, then it is written to
+ * a temporary file.
+ * <p>
+ * With a <code>BodyStore</code>, the body is hashed while it is written and
+ * a body already stored is shared instead of being kept twice.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@Slf4j
+class BodyBuffer extends OutputStream {
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    /**
+     * Digest cloned by each buffer, cheaper than looking up the provider.
+     */
+    private static final MessageDigest DIGEST_PROTOTYPE = newDigest();
+
+    private final int threshold;
+    private final Path directory;
+    private final BodyStore store;
+    private final MessageDigest digest;
+
+    private final ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private Path file;
+    private OutputStream fileStream;
+    private long size;
+
+    BodyBuffer(int threshold, Path directory) {
+        this(threshold, directory, null);
+    }
+
+    BodyBuffer(int threshold, Path directory, BodyStore store) {
+        this.threshold = threshold;
+        this.directory = directory != null
+                ? directory
+                : Paths.get(System.getProperty("java.io.tmpdir"));
+        this.store = store;
+        this.digest = store != null ? cloneDigest() : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (file == null && memory.size() + 1 > threshold) {
+            spill();
+        }
+        if (file == null) {
+            memory.write(b);
+        } else {
+            fileStream.write(b);
+        }
+        if (digest != null) {
+            digest.update((byte) b);
+        }
+        size++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (file == null && memory.size() + length > threshold) {
+            spill();
+        }
+        if (file == null) {
+            memory.write(bytes, offset, length);
+        } else {
+            fileStream.write(bytes, offset, length);
+        }
+        if (digest != null) {
+            digest.update(bytes, offset, length);
+        }
+        size += length;
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer. The position of the
+     * buffer is left unchanged.
+     *
+     * @param buffer Bytes to write.
+     * @throws IOException If the temporary file can't be written.
+     */
+    void write(ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Hands the accumulated bytes to a new body and empties this buffer. The
+     * temporary file, if any, now belongs to the returned body.
+     *
+     * @return The body of the received mail, shared with the mails having the
+     * same body if a store is used.
+     * @throws IOException If the temporary file can't be flushed.
+     */
+    MailBody toBody() throws IOException {
+        if (store == null) {
+            return newBody();
+        }
+        final byte[] hash = digest.digest();
+        final MailBody stored = store.acquire(hash, size);
+        if (stored != null) {
+            reset();
+            return stored;
+        }
+        return store.add(hash, newBody());
+    }
+
+    private MailBody newBody() throws IOException {
+        final MailBody body;
+        if (file == null) {
+            body = MailBody.inMemory(memory.toByteArray());
+        } else {
+            fileStream.close();
+            body = MailBody.inFile(file, size);
+        }
+        memory.reset();
+        file = null;
+        fileStream = null;
+        size = 0;
+        return body;
+    }
+
+    /**
+     * Discards the accumulated bytes and deletes the temporary file, if any.
+     */
+    void reset() {
+        if (file != null) {
+            try {
+                fileStream.close();
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                log.warn("Unable to delete temporary body file " + file, ex);
+            }
+        }
+        memory.reset();
+        file = null;
+        fileStream = null;
+        size = 0;
+        if (digest != null) {
+            digest.reset();
+        }
+    }
+
+    private void spill() throws IOException {
+        file = Files.createTempFile(directory, "mailbank-", ".eml");
+        fileStream = new BufferedOutputStream(Files.newOutputStream(file), FILE_BUFFER_SIZE);
+        memory.writeTo(fileStream);
+        memory.reset();
+        log.debug("Body is larger than " + threshold + " bytes, writing it to " + file);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform has to support SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static MessageDigest cloneDigest() {
+        try {
+            return (MessageDigest) DIGEST_PROTOTYPE.clone();
+        } catch (CloneNotSupportedException ex) {
+            return newDigest();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.github.raphcal.mailbank;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed store of mail bodies. Mails whose raw body is the same,
+ * like the copies of a notification sent to many recipients in separate
+ * transactions, share a single body and its decoded content.
+ * <p>
+ * Bodies are hashed with SHA-256 while they are received. A body is kept
+ * while a mail refers to it. Each mail holds its reference for the length of
+ * its delivery and while its body is retained, like by <code>Mailbox</code>
+ * until the mail is evicted: the reference is released when the body of the
+ * mail is closed. When more than <code>maxEntries</code> bodies are known,
+ * the least recently received ones are evicted from the index: mails
+ * already referring to them keep them, new mails do not share them anymore,
+ * and the body is closed with the last reference.
+ * <p>
+ * A store may be given to the configuration of several servers.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class BodyStore {
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final Map<ByteBuffer, Entry> entries;
+
+    // Guarded by this.
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private long savedBytes;
+
+    public BodyStore() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a store.
+     *
+     * @param maxEntries Maximum number of bodies in the index.
+     */
+    public BodyStore(final int maxEntries) {
+        this.entries = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+                if (size() > maxEntries) {
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns a new reference to the body of the given hash, if known.
+     *
+     * @param digest SHA-256 of the body.
+     * @param size Size of the body in bytes.
+     * @return A body sharing the stored one or <code>null</code> if no such
+     * body is stored.
+     */
+    synchronized MailBody acquire(byte[] digest, long size) {
+        final Entry entry = entries.get(ByteBuffer.wrap(digest));
+        if (entry == null || entry.body.getSize() != size) {
+            return null;
+        }
+        entry.referenceCount++;
+        hitCount++;
+        savedBytes += size;
+        return MailBody.shared(entry);
+    }
+
+    /**
+     * Stores a new body. If the same body has been stored meanwhile by
+     * another connection, the given one is discarded.
+     *
+     * @param digest SHA-256 of the body.
+     * @param body Received body.
+     * @return A body sharing the stored one.
+     */
+    MailBody add(byte[] digest, MailBody body) {
+        final MailBody existing;
+        synchronized (this) {
+            existing = acquire(digest, body.getSize());
+            if (existing == null) {
+                final Entry entry = new Entry(this, ByteBuffer.wrap(digest), body);
+                entries.put(entry.key, entry);
+                missCount++;
+                return MailBody.shared(entry);
+            }
+        }
+        MailBody.closeQuietly(body);
+        return existing;
+    }
+
+    /**
+     * Releases a reference to a stored body. The body is closed with its
+     * last reference.
+     */
+    void release(Entry entry) {
+        synchronized (this) {
+            if (--entry.referenceCount > 0) {
+                return;
+            }
+            if (entries.get(entry.key) == entry) {
+                entries.remove(entry.key);
+            }
+        }
+        MailBody.closeQuietly(entry.body);
+    }
+
+    /**
+     * Number of bodies in the index.
+     *
+     * @return The number of distinct bodies which may be shared.
+     */
+    public synchronized int getBodyCount() {
+        return entries.size();
+    }
+
+    /**
+     * Number of received bodies which were already stored.
+     *
+     * @return The number of shared bodies.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Number of received bodies which were not stored yet.
+     *
+     * @return The number of distinct bodies.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Number of bodies removed from the index because it was full.
+     *
+     * @return The number of evictions.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Total size of the bodies which have not been kept because they were
+     * already stored.
+     *
+     * @return A number of bytes.
+     */
+    public synchronized long getSavedBytes() {
+        return savedBytes;
+    }
+
+    /**
+     * Stored body and the content decoded from it.
+     */
+    static class Entry {
+        private final BodyStore store;
+        private final ByteBuffer key;
+        private final MailBody body;
+        /**
+         * References held by mails. Guarded by the store.
+         */
+        private int referenceCount = 1;
+
+        /**
+         * Last decoded content. Copies of a mail share the same headers, the
+         * content is then decoded once.
+         */
+        private volatile DecodedContent decoded;
+
+        Entry(BodyStore store, ByteBuffer key, MailBody body) {
+            this.store = store;
+            this.key = key;
+            this.body = body;
+        }
+
+        MailBody getBody() {
+            return body;
+        }
+
+        void release() {
+            store.release(this);
+        }
+
+        String decode(String transferEncoding, Charset charset) throws IOException {
+            final DecodedContent last = decoded;
+            if (last != null && last.matches(transferEncoding, charset)) {
+                return last.content;
+            }
+            final String content = body.decode(transferEncoding, charset);
+            decoded = new DecodedContent(transferEncoding, charset, content);
+            return content;
+        }
+    }
+
+    private static class DecodedContent {
+        private final String transferEncoding;
+        private final Charset charset;
+        private final String content;
+
+        DecodedContent(String transferEncoding, Charset charset, String content) {
+            this.transferEncoding = transferEncoding;
+            this.charset = charset;
+            this.content = content;
+        }
+
+        boolean matches(String transferEncoding, Charset charset) {
+            return this.charset.equals(charset) && (this.transferEncoding == null
+                    ? transferEncoding == null
+                    : this.transferEncoding.equalsIgnoreCase(transferEncoding));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.raphcal.mailbank;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared pool of direct read buffers.
+ * <p>
+ * Connections borrow a buffer when they become readable and give it back as
+ * soon as every read byte has been consumed, so idle connections hold no
+ * buffer. Small buffers are used for commands, large ones while receiving
+ * the content of a mail.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+class BufferPool {
+
+    private final int smallSize;
+    private final int largeSize;
+    private final int capacity;
+
+    private final Queue<ByteBuffer> smallBuffers = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> largeBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleSmallCount = new AtomicInteger();
+    private final AtomicInteger idleLargeCount = new AtomicInteger();
+
+    private final AtomicInteger borrowedCount = new AtomicInteger();
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder allocationCount = new LongAdder();
+
+    BufferPool(MailBankConfiguration configuration) {
+        this.smallSize = configuration.getCommandBufferSize();
+        this.largeSize = configuration.getDataBufferSize();
+        this.capacity = configuration.getBufferPoolCapacity();
+    }
+
+    /**
+     * Borrows a cleared buffer.
+     *
+     * @param contentBuffer <code>true</code> to get a buffer sized for mail content,
+     * <code>false</code> for commands.
+     * @return A buffer, to give back with <code>release</code>.
+     */
+    ByteBuffer borrow(boolean contentBuffer) {
+        final boolean large = contentBuffer && largeSize != smallSize;
+        borrowCount.increment();
+        borrowedCount.incrementAndGet();
+        final ByteBuffer buffer = large ? largeBuffers.poll() : smallBuffers.poll();
+        if (buffer != null) {
+            (large ? idleLargeCount : idleSmallCount).decrementAndGet();
+            return buffer;
+        }
+        allocationCount.increment();
+        return ByteBuffer.allocateDirect(large ? largeSize : smallSize);
+    }
+
+    /**
+     * Gives back a borrowed buffer. Buffers above the pool capacity are left
+     * to the garbage collector.
+     *
+     * @param buffer Buffer to give back.
+     */
+    void release(ByteBuffer buffer) {
+        borrowedCount.decrementAndGet();
+        ((Buffer) buffer).clear();
+        final boolean large = buffer.capacity() == largeSize && largeSize != smallSize;
+        final AtomicInteger idleCount = large ? idleLargeCount : idleSmallCount;
+        if (idleCount.incrementAndGet() > capacity) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        (large ? largeBuffers : smallBuffers).add(buffer);
+    }
+
+    /**
+     * Number of buffers currently held by connections.
+     *
+     * @return The number of borrowed buffers.
+     */
+    int getBorrowedCount() {
+        return borrowedCount.get();
+    }
+
+    /**
+     * Number of buffers waiting in the pool.
+     *
+     * @return The number of idle buffers.
+     */
+    int getIdleCount() {
+        return idleSmallCount.get() + idleLargeCount.get();
+    }
+
+    /**
+     * Number of calls to <code>borrow</code> since the start.
+     *
+     * @return The number of borrows.
+     */
+    long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    /**
+     * Number of buffers allocated because the pool was empty.
+     *
+     * @return The number of allocations since the start.
+     */
+    long getAllocationCount() {
+        return allocationCount.sum();
+    }
+}
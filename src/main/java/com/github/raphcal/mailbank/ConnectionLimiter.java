@@ -0,0 +1,88 @@
+package com.github.raphcal.mailbank;
+
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the open connections of a server, in total and by remote address,
+ * and refuses new connections above the configured limits.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+class ConnectionLimiter {
+
+    private final int maxConnections;
+    private final int maxConnectionsPerAddress;
+
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final Map<InetAddress, Integer> connectionsByAddress = new ConcurrentHashMap<>();
+    private final LongAdder refusedCount = new LongAdder();
+
+    ConnectionLimiter(MailBankConfiguration configuration) {
+        this.maxConnections = configuration.getMaxConnections();
+        this.maxConnectionsPerAddress = configuration.getMaxConnectionsPerAddress();
+    }
+
+    /**
+     * Counts the given accepted connection if it is within the limits.
+     *
+     * @param channel Accepted connection.
+     * @return <code>true</code> if the connection may be served,
+     * <code>false</code> if it has to be refused.
+     */
+    boolean tryAcquire(SocketChannel channel) {
+        if (connectionCount.incrementAndGet() > maxConnections && maxConnections > 0) {
+            connectionCount.decrementAndGet();
+            refusedCount.increment();
+            return false;
+        }
+        final InetAddress address = channel.socket().getInetAddress();
+        if (maxConnectionsPerAddress > 0 && address != null) {
+            final boolean[] accepted = {true};
+            connectionsByAddress.compute(address, (key, count) -> {
+                if (count != null && count >= maxConnectionsPerAddress) {
+                    accepted[0] = false;
+                    return count;
+                }
+                return count == null ? 1 : count + 1;
+            });
+            if (!accepted[0]) {
+                connectionCount.decrementAndGet();
+                refusedCount.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops counting the given connection. Must be called before the channel
+     * is closed.
+     *
+     * @param channel Connection accepted by <code>tryAcquire</code>.
+     */
+    void release(SocketChannel channel) {
+        connectionCount.decrementAndGet();
+        final InetAddress address = channel.socket().getInetAddress();
+        if (maxConnectionsPerAddress > 0 && address != null) {
+            connectionsByAddress.computeIfPresent(address, (key, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Number of connections refused because of the limits.
+     *
+     * @return The number of refused connections since the start.
+     */
+    long getRefusedCount() {
+        return refusedCount.sum();
+    }
+}
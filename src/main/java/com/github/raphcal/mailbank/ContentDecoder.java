@@ -0,0 +1,411 @@
+package com.github.raphcal.mailbank;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Single pass decoders for the quoted-printable and base64 transfer
+ * encodings.
+ * <p>
+ * Decoded content is never larger than the encoded content: the output array
+ * must be at least <code>length</code> bytes long and may be the input array
+ * itself to decode in place.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class ContentDecoder {
+    static final String CONTENT_TYPE_HEADER = "Content-Type";
+    static final String CONTENT_TRANSFER_ENCODING_HEADER = "Content-Transfer-Encoding";
+
+    private static final String QUOTED_PRINTABLE_CONTENT_TRANSFER_ENCODING = "quoted-printable";
+    private static final String BASE64_CONTENT_TRANSFER_ENCODING = "base64";
+    private static final String CHARSET_PARAMETER = "charset=";
+    private static final int MAX_CACHED_CHARSETS = 64;
+    private static final Map<String, Charset> CHARSETS = new ConcurrentHashMap<>();
+
+    /**
+     * Decoding buffer of each thread, reused from one mail to the next.
+     */
+    private static final ThreadLocal<byte[]> DECODE_BUFFERS = new ThreadLocal<>();
+    /**
+     * Largest buffer kept by a thread. Larger contents are decoded in a
+     * buffer of their own, dropped once decoded.
+     */
+    private static final int MAX_CACHED_DECODE_BUFFER = 64 * 1024;
+
+    private static final int INVALID = -1;
+    private static final int[] HEX = new int[128];
+    private static final int[] BASE64 = new int[128];
+
+    static {
+        Arrays.fill(HEX, INVALID);
+        for (int index = 0; index < 10; index++) {
+            HEX['0' + index] = index;
+        }
+        for (int index = 0; index < 6; index++) {
+            HEX['A' + index] = 10 + index;
+            HEX['a' + index] = 10 + index;
+        }
+
+        Arrays.fill(BASE64, INVALID);
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int index = 0; index < alphabet.length(); index++) {
+            BASE64[alphabet.charAt(index)] = index;
+        }
+    }
+
+    private ContentDecoder() {
+    }
+
+    /**
+     * Decodes the given body according to its transfer encoding and its
+     * charset.
+     *
+     * @param bytes Raw body.
+     * @param length Number of bytes of the body.
+     * @param transferEncoding Value of the Content-Transfer-Encoding header,
+     * may be <code>null</code>.
+     * @param charset Charset of the content.
+     * @return The decoded content.
+     */
+    static String decode(byte[] bytes, int length, String transferEncoding, Charset charset) {
+        if (QUOTED_PRINTABLE_CONTENT_TRANSFER_ENCODING.equalsIgnoreCase(transferEncoding)) {
+            final byte[] output = decodeBuffer(length);
+            return new String(output, 0, decodeQuotedPrintable(bytes, 0, length, output), charset);
+        } else if (BASE64_CONTENT_TRANSFER_ENCODING.equalsIgnoreCase(transferEncoding)) {
+            final byte[] output = decodeBuffer(length);
+            return new String(output, 0, decodeBase64(bytes, 0, length, output), charset);
+        }
+        return new String(bytes, 0, length, charset);
+    }
+
+    /**
+     * Reads the charset parameter of a Content-Type header. Charsets are
+     * looked up once per distinct name.
+     *
+     * @param contentType Value of the header, may be <code>null</code>.
+     * @return The declared charset or US-ASCII if absent.
+     * @throws java.nio.charset.UnsupportedCharsetException If the charset
+     * is not supported by the JVM.
+     */
+    static Charset charsetOf(String contentType) {
+        final String name = parameter(contentType, CHARSET_PARAMETER);
+        if (name == null) {
+            return StandardCharsets.US_ASCII;
+        }
+        Charset charset = CHARSETS.get(name);
+        if (charset == null) {
+            charset = Charset.forName(name);
+            if (CHARSETS.size() < MAX_CACHED_CHARSETS) {
+                CHARSETS.put(name, charset);
+            }
+        }
+        return charset;
+    }
+
+    /**
+     * Finds the value of a parameter of a structured header, like the
+     * charset of a Content-Type.
+     *
+     * @param value Value of the header, may be <code>null</code>.
+     * @param parameter Name of the parameter followed by <code>=</code>,
+     * case is ignored.
+     * @return The value of the parameter without quotes, or
+     * <code>null</code> if absent.
+     */
+    static String parameter(String value, String parameter) {
+        if (value == null) {
+            return null;
+        }
+        int index = 0;
+        while ((index = value.indexOf(';', index)) >= 0) {
+            index++;
+            while (index < value.length() && Character.isWhitespace(value.charAt(index))) {
+                index++;
+            }
+            if (value.regionMatches(true, index, parameter, 0, parameter.length())) {
+                int start = index + parameter.length();
+                int end = value.indexOf(';', start);
+                if (end < 0) {
+                    end = value.length();
+                }
+                while (end > start && Character.isWhitespace(value.charAt(end - 1))) {
+                    end--;
+                }
+                if (end - start >= 2 && value.charAt(start) == '"' && value.charAt(end - 1) == '"') {
+                    start++;
+                    end--;
+                }
+                return start < end ? value.substring(start, end) : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes quoted-printable content. Soft line breaks are removed and
+     * malformed escape sequences are kept as is.
+     *
+     * @param input Encoded bytes.
+     * @param offset Index of the first encoded byte.
+     * @param length Number of encoded bytes.
+     * @param output Array receiving the decoded bytes, from index 0.
+     * @return The number of decoded bytes.
+     */
+    static int decodeQuotedPrintable(byte[] input, int offset, int length, byte[] output) {
+        final int end = offset + length;
+        int position = 0;
+        int index = offset;
+        while (index < end) {
+            final byte b = input[index++];
+            if (b != '=') {
+                output[position++] = b;
+                continue;
+            }
+            // Soft line break, possibly preceded by transport padding.
+            int next = index;
+            while (next < end && (input[next] == ' ' || input[next] == '\t')) {
+                next++;
+            }
+            if (next < end && input[next] == '\r' && next + 1 < end && input[next + 1] == '\n') {
+                index = next + 2;
+                continue;
+            } else if (next < end && input[next] == '\n') {
+                index = next + 1;
+                continue;
+            } else if (next == end) {
+                index = end;
+                continue;
+            }
+
+            final int high = index < end ? hex(input[index]) : INVALID;
+            final int low = index + 1 < end ? hex(input[index + 1]) : INVALID;
+            if (high != INVALID && low != INVALID) {
+                output[position++] = (byte) (high << 4 | low);
+                index += 2;
+            } else {
+                output[position++] = b;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Decodes base64 content. Line breaks and other characters outside of the
+     * base64 alphabet are ignored, decoding stops at the first padding
+     * character.
+     *
+     * @param input Encoded bytes.
+     * @param offset Index of the first encoded byte.
+     * @param length Number of encoded bytes.
+     * @param output Array receiving the decoded bytes, from index 0.
+     * @return The number of decoded bytes.
+     */
+    static int decodeBase64(byte[] input, int offset, int length, byte[] output) {
+        final int end = offset + length;
+        int position = 0;
+        int accumulator = 0;
+        int bits = 0;
+        for (int index = offset; index < end; index++) {
+            final byte b = input[index];
+            if (b == '=') {
+                break;
+            }
+            final int value = b >= 0 ? BASE64[b] : INVALID;
+            if (value == INVALID) {
+                continue;
+            }
+            accumulator = (accumulator << 6 | value) & 0xFFFFFF;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                output[position++] = (byte) (accumulator >> bits);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Wraps a stream of transfer encoded content in a stream decoding it
+     * while it is read.
+     *
+     * @param raw Encoded content.
+     * @param transferEncoding Value of the Content-Transfer-Encoding header,
+     * may be <code>null</code>.
+     * @return A decoding stream, or <code>raw</code> itself if the content
+     * is not encoded.
+     */
+    static InputStream decodingStream(InputStream raw, String transferEncoding) {
+        if (QUOTED_PRINTABLE_CONTENT_TRANSFER_ENCODING.equalsIgnoreCase(transferEncoding)) {
+            return new DecodingInputStream(raw, false);
+        } else if (BASE64_CONTENT_TRANSFER_ENCODING.equalsIgnoreCase(transferEncoding)) {
+            return new DecodingInputStream(raw, true);
+        }
+        return raw;
+    }
+
+    /**
+     * Returns the decoding buffer of the current thread, grown if needed, or
+     * a new buffer if <code>length</code> is over
+     * <code>MAX_CACHED_DECODE_BUFFER</code>.
+     *
+     * @param length Minimum length of the buffer.
+     * @return A buffer of at least <code>length</code> bytes.
+     */
+    private static byte[] decodeBuffer(int length) {
+        if (length > MAX_CACHED_DECODE_BUFFER) {
+            return new byte[length];
+        }
+        byte[] buffer = DECODE_BUFFERS.get();
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[Math.min(MAX_CACHED_DECODE_BUFFER, Math.max(length, buffer != null ? buffer.length * 2 : 0))];
+            DECODE_BUFFERS.set(buffer);
+        }
+        return buffer;
+    }
+
+    private static int hex(byte b) {
+        return b >= 0 ? HEX[b] : INVALID;
+    }
+
+    /**
+     * Decodes the encoded content by chunks. A chunk is cut where decoding
+     * can resume without state: after a line feed for quoted-printable, after
+     * a full group of 4 characters for base64.
+     */
+    private static class DecodingInputStream extends InputStream {
+        private static final int CHUNK_SIZE = 8 * 1024;
+
+        private final InputStream raw;
+        private final boolean base64;
+
+        private byte[] input = new byte[CHUNK_SIZE];
+        private int inputLength;
+        private byte[] output = new byte[CHUNK_SIZE];
+        private int outputPosition;
+        private int outputLength;
+        private boolean endOfInput;
+        private boolean finished;
+
+        DecodingInputStream(InputStream raw, boolean base64) {
+            this.raw = raw;
+            this.base64 = base64;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? output[outputPosition++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int count = Math.min(len, outputLength - outputPosition);
+            System.arraycopy(output, outputPosition, b, off, count);
+            outputPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return outputLength - outputPosition;
+        }
+
+        @Override
+        public void close() throws IOException {
+            raw.close();
+        }
+
+        /**
+         * Decodes the next chunk if every decoded byte has been read.
+         *
+         * @return <code>false</code> at the end of the content.
+         */
+        private boolean fill() throws IOException {
+            while (outputPosition == outputLength && !finished) {
+                if (!endOfInput) {
+                    if (inputLength == input.length) {
+                        input = Arrays.copyOf(input, input.length * 2);
+                    }
+                    final int read = raw.read(input, inputLength, input.length - inputLength);
+                    if (read < 0) {
+                        endOfInput = true;
+                    } else {
+                        inputLength += read;
+                    }
+                }
+                final int end = endOfInput ? inputLength : cutIndex();
+                if (end == 0) {
+                    finished = endOfInput;
+                    continue;
+                }
+                if (output.length < end) {
+                    output = new byte[Math.max(end, output.length * 2)];
+                }
+                outputLength = base64
+                        ? decodeBase64(input, 0, end, output)
+                        : decodeQuotedPrintable(input, 0, end, output);
+                outputPosition = 0;
+                if (base64 && indexOf(input, end, (byte) '=') >= 0) {
+                    // Padding: the content ends here.
+                    finished = true;
+                }
+                inputLength -= end;
+                System.arraycopy(input, end, input, 0, inputLength);
+                finished |= endOfInput && inputLength == 0;
+            }
+            return outputPosition < outputLength;
+        }
+
+        /**
+         * Index following the bytes that can be decoded now.
+         */
+        private int cutIndex() {
+            if (base64) {
+                if (indexOf(input, inputLength, (byte) '=') >= 0) {
+                    return inputLength;
+                }
+                int characters = 0;
+                for (int index = 0; index < inputLength; index++) {
+                    if (input[index] >= 0 && BASE64[input[index]] != INVALID) {
+                        characters++;
+                    }
+                }
+                int kept = characters % 4;
+                int end = inputLength;
+                while (kept > 0) {
+                    end--;
+                    if (input[end] >= 0 && BASE64[input[end]] != INVALID) {
+                        kept--;
+                    }
+                }
+                return end;
+            }
+            for (int index = inputLength - 1; index >= 0; index--) {
+                if (input[index] == '\n') {
+                    return index + 1;
+                }
+            }
+            return 0;
+        }
+
+        private static int indexOf(byte[] bytes, int length, byte b) {
+            for (int index = 0; index < length; index++) {
+                if (bytes[index] == b) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+    }
+}
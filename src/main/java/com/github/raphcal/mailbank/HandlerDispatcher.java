@@ -0,0 +1,209 @@
+package com.github.raphcal.mailbank;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs the deliveries of received mails, like the calls to
+ * <code>SmtpHandler</code>.
+ * <p>
+ * Without executor, the handler is called directly by the calling (selector)
+ * thread. With an executor, at most <code>capacity</code> mails may be waiting
+ * or running at the same time. Further mails are refused until a delivery
+ * ends. Mails are also refused while the batch collector, if any, is full.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@Slf4j
+class HandlerDispatcher {
+
+    private final Executor executor;
+    private final int capacity;
+    /**
+     * Collector of a <code>BatchSmtpHandler</code>, <code>null</code> for the
+     * other handlers.
+     */
+    private final MailBatcher batcher;
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final LongAdder rejectionCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+
+    private final List<Runnable> capacityListeners = new CopyOnWriteArrayList<>();
+    private final ReentrantLock capacityLock = new ReentrantLock();
+    private final Condition capacityFreed = capacityLock.newCondition();
+    private final AtomicInteger capacityWaiters = new AtomicInteger();
+
+    HandlerDispatcher(MailBankConfiguration configuration, MailBatcher batcher) {
+        this.executor = configuration.getHandlerExecutor();
+        this.capacity = configuration.getHandlerQueueCapacity();
+        this.batcher = batcher;
+        if (batcher != null) {
+            batcher.setCapacityListener(this::capacityFreed);
+        }
+    }
+
+    /**
+     * Runs the given delivery or queues it.
+     *
+     * @param delivery Delivery of a received mail.
+     * @return <code>true</code> if the delivery has been run or queued,
+     * <code>false</code> if the queue or the batch collector is full.
+     */
+    boolean dispatch(final Runnable delivery) {
+        if (batcher != null && !batcher.hasCapacity()) {
+            rejectionCount.increment();
+            return false;
+        }
+        if (executor == null) {
+            deliver(delivery);
+            return true;
+        }
+        if (queueDepth.incrementAndGet() > capacity) {
+            queueDepth.decrementAndGet();
+            rejectionCount.increment();
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    deliver(delivery);
+                } finally {
+                    queueDepth.decrementAndGet();
+                    capacityFreed();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            log.warn("Handler executor refused a delivery", ex);
+            queueDepth.decrementAndGet();
+            rejectionCount.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Notifies the listeners and the waiting threads that a queued delivery
+     * or a batch ended.
+     */
+    private void capacityFreed() {
+        for (final Runnable listener : capacityListeners) {
+            listener.run();
+        }
+        if (capacityWaiters.get() > 0) {
+            signalCapacity();
+        }
+    }
+
+    /**
+     * Adds a listener called by the delivering thread each time a queued
+     * delivery or a batch ends.
+     *
+     * @param listener Listener to call.
+     */
+    void addCapacityListener(Runnable listener) {
+        capacityListeners.add(listener);
+    }
+
+    /**
+     * Blocks the calling thread until a queued delivery or a batch ends. Used
+     * by blocking sessions to stop reading while the queue is full.
+     *
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of the timeout.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    void awaitCapacity(long timeout, TimeUnit unit) throws InterruptedException {
+        capacityWaiters.incrementAndGet();
+        capacityLock.lock();
+        try {
+            if ((executor != null && queueDepth.get() >= capacity)
+                    || (batcher != null && !batcher.hasCapacity())) {
+                capacityFreed.await(timeout, unit);
+            }
+        } finally {
+            capacityLock.unlock();
+            capacityWaiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Blocks the calling thread until every queued delivery has ended.
+     *
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of the timeout.
+     * @return <code>true</code> if the queue is empty, <code>false</code> if
+     * the timeout elapsed first.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        capacityWaiters.incrementAndGet();
+        capacityLock.lock();
+        try {
+            while (queueDepth.get() > 0) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = capacityFreed.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            capacityLock.unlock();
+            capacityWaiters.decrementAndGet();
+        }
+    }
+
+    private void signalCapacity() {
+        capacityLock.lock();
+        try {
+            capacityFreed.signalAll();
+        } finally {
+            capacityLock.unlock();
+        }
+    }
+
+    /**
+     * Number of mails waiting for or being delivered by the executor.
+     *
+     * @return The number of pending deliveries.
+     */
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Number of mails refused because the queue was full.
+     *
+     * @return The number of rejections since the start.
+     */
+    long getRejectionCount() {
+        return rejectionCount.sum();
+    }
+
+    /**
+     * Number of handler calls which ended with an exception.
+     *
+     * @return The number of failures since the start.
+     */
+    long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    private void deliver(final Runnable delivery) {
+        try {
+            delivery.run();
+        } catch (RuntimeException ex) {
+            failureCount.increment();
+            log.error("Handler failed to process a mail", ex);
+        }
+    }
+}
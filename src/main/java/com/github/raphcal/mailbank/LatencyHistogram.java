@@ -0,0 +1,126 @@
+package com.github.raphcal.mailbank;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds.
+ * <p>
+ * Like HdrHistogram, values are counted in buckets whose width doubles with
+ * each power of two, each power of two being split in 32 sub-buckets: every
+ * recorded value is known within about 3%. The counters of a power of two are
+ * only allocated when a value falls in it: an unused histogram takes a few
+ * hundred bytes.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+    private static final int GROUP_COUNT = BUCKET_COUNT / SUB_BUCKET_COUNT;
+    private static final double NANOS_PER_MICRO = 1000.0;
+
+    /**
+     * Counters of the buckets, by group of <code>SUB_BUCKET_COUNT</code>.
+     */
+    private final AtomicReferenceArray<AtomicLongArray> counts = new AtomicReferenceArray<>(GROUP_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos Duration in nanoseconds, negative values are counted as 0.
+     */
+    void record(long nanos) {
+        final long value = Math.max(0, nanos);
+        final int index = indexOf(value);
+        group(index / SUB_BUCKET_COUNT).incrementAndGet(index % SUB_BUCKET_COUNT);
+        count.increment();
+        sum.add(value);
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // Retries until the maximum is updated or exceeded.
+        }
+    }
+
+    /**
+     * Computes the statistics of the recorded durations. Values recorded
+     * concurrently may or may not be included.
+     *
+     * @return Count, mean, percentiles and maximum, in microseconds.
+     */
+    LatencyStatistics statistics() {
+        final long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int group = 0; group < GROUP_COUNT; group++) {
+            final AtomicLongArray groupCounts = counts.get(group);
+            if (groupCounts == null) {
+                continue;
+            }
+            for (int offset = 0; offset < SUB_BUCKET_COUNT; offset++) {
+                final int index = group * SUB_BUCKET_COUNT + offset;
+                snapshot[index] = groupCounts.get(offset);
+                total += snapshot[index];
+            }
+        }
+        if (total == 0) {
+            return new LatencyStatistics(0, 0, 0, 0, 0, 0, 0);
+        }
+        final long maxValue = max.get();
+        return new LatencyStatistics(total,
+                sum.sum() / (double) count.sum() / NANOS_PER_MICRO,
+                percentile(snapshot, total, 0.5, maxValue),
+                percentile(snapshot, total, 0.9, maxValue),
+                percentile(snapshot, total, 0.99, maxValue),
+                percentile(snapshot, total, 0.999, maxValue),
+                maxValue / NANOS_PER_MICRO);
+    }
+
+    /**
+     * Counters of the given group, allocated by its first value.
+     */
+    private AtomicLongArray group(int group) {
+        AtomicLongArray groupCounts = counts.get(group);
+        if (groupCounts == null) {
+            counts.compareAndSet(group, null, new AtomicLongArray(SUB_BUCKET_COUNT));
+            groupCounts = counts.get(group);
+        }
+        return groupCounts;
+    }
+
+    private static double percentile(long[] snapshot, long total, double percentile, long maxValue) {
+        final long rank = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        int index = 0;
+        while (index < BUCKET_COUNT - 1 && (seen += snapshot[index]) < rank) {
+            index++;
+        }
+        // The highest value of a bucket may be above the recorded maximum.
+        return Math.min(highestValueOf(index), maxValue) / NANOS_PER_MICRO;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    /**
+     * Highest value counted by the given bucket.
+     */
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        final long subBucket = SUB_BUCKET_COUNT + (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
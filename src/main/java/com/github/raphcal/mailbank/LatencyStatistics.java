@@ -0,0 +1,19 @@
+package com.github.raphcal.mailbank;
+
+import lombok.Value;
+
+/**
+ * Statistics of a measured duration. Durations are in microseconds.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@Value
+public class LatencyStatistics {
+    long count;
+    double mean;
+    double p50;
+    double p90;
+    double p99;
+    double p999;
+    double max;
+}
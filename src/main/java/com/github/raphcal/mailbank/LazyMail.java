@@ -0,0 +1,94 @@
+package com.github.raphcal.mailbank;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mail keeping its raw header lines and body. Headers and content are only
+ * parsed and decoded the first time they are read, then cached.
+ * <p>
+ * Content not read during the delivery can only be read later if the body
+ * has been retained, see <code>SmtpHandler</code>.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class LazyMail extends Mail {
+
+    private final byte[] headerBytes;
+    /**
+     * Start and end index of each header line in <code>headerBytes</code>.
+     */
+    private final int[] headerOffsets;
+    private final int headerCount;
+    private final boolean decodeContent;
+
+    private volatile Map<String, String> headers;
+    private volatile String content;
+    private volatile boolean contentDecoded;
+
+    LazyMail(String from, List<String> to, byte[] headerBytes, int[] headerOffsets, int headerCount, MailBody body, boolean decodeContent) {
+        super(from, to, null, null, null, null, body);
+        this.headerBytes = headerBytes;
+        this.headerOffsets = headerOffsets;
+        this.headerCount = headerCount;
+        this.decodeContent = decodeContent;
+    }
+
+    /**
+     * Parses the header lines on first call.
+     *
+     * @return The headers of this mail.
+     */
+    @Override
+    public Map<String, String> getHeaders() {
+        Map<String, String> value = headers;
+        if (value == null) {
+            final MailHeaders parsed = new MailHeaders(headerCount);
+            final ByteBuffer line = ByteBuffer.wrap(headerBytes);
+            for (int index = 0; index < headerCount; index++) {
+                ((Buffer) line).limit(headerOffsets[index * 2 + 1]).position(headerOffsets[index * 2]);
+                parsed.addLine(line);
+            }
+            headers = value = parsed;
+        }
+        return value;
+    }
+
+    @Override
+    public void setHeaders(Map<String, String> headers) {
+        this.headers = headers;
+    }
+
+    /**
+     * Decodes the body on first call. Bodies written to a temporary file are
+     * read back from it.
+     *
+     * @return The decoded content or <code>null</code> if content decoding
+     * is disabled.
+     * @throws UncheckedIOException If the body file can't be read.
+     */
+    @Override
+    public String getContent() {
+        if (!contentDecoded && decodeContent) {
+            final Map<String, String> allHeaders = getHeaders();
+            try {
+                content = getBody().decode(allHeaders.get(ContentDecoder.CONTENT_TRANSFER_ENCODING_HEADER),
+                        ContentDecoder.charsetOf(allHeaders.get(ContentDecoder.CONTENT_TYPE_HEADER)));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            contentDecoded = true;
+        }
+        return content;
+    }
+
+    @Override
+    public void setContent(String content) {
+        this.content = content;
+        this.contentDecoded = true;
+    }
+}
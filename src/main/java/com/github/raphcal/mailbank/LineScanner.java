@@ -0,0 +1,230 @@
+package com.github.raphcal.mailbank;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Incremental CRLF line scanner.
+ * <p>
+ * Bytes of a line split across several reads are kept until the line ending
+ * arrives, up to a maximum length. The same backing array is reused for
+ * every line, the current line is only valid until the next call to
+ * <code>scan</code>.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+class LineScanner {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private byte[] line = new byte[INITIAL_CAPACITY];
+    private int length;
+    private boolean complete;
+    private int maxLength = Integer.MAX_VALUE;
+    /**
+     * Set when the current line exceeded <code>maxLength</code>, its bytes
+     * are then discarded.
+     */
+    private boolean tooLong;
+
+    /**
+     * Consumes bytes from the given buffer until a line feed is found or the
+     * buffer is empty.
+     * <p>
+     * Bytes of a line longer than <code>maxLength</code> are discarded until
+     * its line feed: the line is then reported empty, with
+     * <code>isTooLong()</code> returning <code>true</code>.
+     *
+     * @param buffer Buffer to read, in read mode.
+     * @return <code>true</code> if a whole line is available,
+     * <code>false</code> if more bytes are needed.
+     */
+    boolean scan(ByteBuffer buffer) {
+        if (complete) {
+            length = 0;
+            complete = false;
+            tooLong = false;
+        }
+        if (buffer.hasArray()) {
+            final byte[] array = buffer.array();
+            final int offset = buffer.arrayOffset();
+            final int start = offset + buffer.position();
+            final int end = offset + buffer.limit();
+            int index = start;
+            while (index < end && array[index] != '\n') {
+                index++;
+            }
+            if (accept(index - start)) {
+                append(array, start, index - start);
+            }
+            if (index < end) {
+                buffer.position(index + 1 - offset);
+                return endOfLine();
+            }
+            buffer.position(buffer.limit());
+            return false;
+        }
+        // Direct buffers: the line is searched with absolute reads and
+        // copied with a single bulk get.
+        final int start = buffer.position();
+        final int end = buffer.limit();
+        int index = start;
+        while (index < end && buffer.get(index) != '\n') {
+            index++;
+        }
+        final int count = index - start;
+        if (accept(count)) {
+            ensureCapacity(length + count);
+            buffer.get(line, length, count);
+            length += count;
+        }
+        if (index < end) {
+            buffer.position(index + 1);
+            return endOfLine();
+        }
+        buffer.position(end);
+        return false;
+    }
+
+    /**
+     * Sets the maximum length of the next lines, line feed excluded.
+     *
+     * @param maxLength Maximum number of bytes.
+     */
+    void setMaxLength(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Indicates if the current line has been discarded because it was
+     * longer than <code>maxLength</code>.
+     *
+     * @return <code>true</code> if the line was too long.
+     */
+    boolean isTooLong() {
+        return tooLong;
+    }
+
+    /**
+     * Bytes of the current line, without the line ending. Only the first
+     * <code>length()</code> bytes are meaningful.
+     *
+     * @return The backing array of the current line.
+     */
+    byte[] bytes() {
+        return line;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Length of the current line followed by CRLF. <code>bytes()</code>
+     * always contains the line ending after the line, even if the client
+     * only sent a line feed.
+     *
+     * @return <code>length() + 2</code>.
+     */
+    int lengthWithEnding() {
+        return length + 2;
+    }
+
+    boolean isEmpty() {
+        return length == 0;
+    }
+
+    /**
+     * Indicates if the current line is made of the given ASCII byte only.
+     *
+     * @param b Byte to check.
+     * @return <code>true</code> if the line is exactly <code>b</code>.
+     */
+    boolean is(char b) {
+        return length == 1 && line[0] == b;
+    }
+
+    /**
+     * Indicates if the current line starts with the given ASCII keyword,
+     * ignoring case.
+     *
+     * @param keyword Upper case keyword.
+     * @return <code>true</code> if the line starts with the keyword.
+     */
+    boolean startsWithIgnoreCase(byte[] keyword) {
+        if (length < keyword.length) {
+            return false;
+        }
+        for (int index = 0; index < keyword.length; index++) {
+            final byte b = line[index];
+            final byte upper = b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b;
+            if (upper != keyword[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int indexOf(char b) {
+        for (int index = 0; index < length; index++) {
+            if (line[index] == b) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the current line.
+     *
+     * @param charset Charset to use.
+     * @return The current line as a string.
+     */
+    String toString(Charset charset) {
+        return new String(line, 0, length, charset);
+    }
+
+    private boolean endOfLine() {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        if (length > maxLength) {
+            tooLong = true;
+            length = 0;
+        }
+        // The line ending is normalized for lengthWithEnding().
+        ensureCapacity(length + 2);
+        line[length] = '\r';
+        line[length + 1] = '\n';
+        complete = true;
+        return true;
+    }
+
+    /**
+     * Checks if the given number of bytes can be added to the current line.
+     *
+     * @param count Number of bytes read before the next line feed.
+     * @return <code>true</code> if the bytes have to be kept,
+     * <code>false</code> if they have to be discarded.
+     */
+    private boolean accept(int count) {
+        // One more byte is kept for the carriage return of the line ending.
+        if (!tooLong && length + count - 1 > maxLength) {
+            tooLong = true;
+            length = 0;
+        }
+        return !tooLong;
+    }
+
+    private void append(byte[] source, int offset, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(source, offset, line, length, count);
+        length += count;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > line.length) {
+            line = Arrays.copyOf(line, Math.max(capacity, line.length * 2));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.raphcal.mailbank;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Listening socket of a <code>MailBank</code> and the state shared by the
+ * connections it accepts: handler, configuration, connection limits, handler
+ * queue and metrics.
+ * <p>
+ * Every listener of a <code>MailEngine</code> is served by the same threads
+ * but its connections, mails and metrics are isolated from the others.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@Slf4j
+@Getter
+class Listener {
+    private final StreamingSmtpHandler handler;
+    private final MailBankConfiguration configuration;
+    private final HandlerDispatcher dispatcher;
+    private final ConnectionLimiter limiter;
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * Sessions of the blocking transport accepted by this listener.
+     */
+    private final Set<BlockingSession> sessions = ConcurrentHashMap.newKeySet();
+
+    private ServerSocketChannel channel;
+    private volatile InetSocketAddress endpoint;
+    /**
+     * Set once the listener stopped accepting connections to let the open
+     * ones end.
+     */
+    private volatile boolean draining;
+
+    /**
+     * Collector of a <code>BatchSmtpHandler</code>, <code>null</code> for the
+     * other handlers.
+     */
+    private final MailBatcher batcher;
+
+    Listener(StreamingSmtpHandler handler, MailBankConfiguration configuration, MailBatcher batcher) {
+        this.handler = handler;
+        this.configuration = configuration;
+        this.batcher = batcher;
+        this.dispatcher = new HandlerDispatcher(configuration, batcher);
+        this.limiter = new ConnectionLimiter(configuration);
+    }
+
+    /**
+     * Opens the listening socket.
+     *
+     * @param port Port to listen to, 0 for an ephemeral port.
+     * @param nextFreePort <code>true</code> to try the following ports while
+     * the given one is taken.
+     * @throws IOException If the socket can't be bound.
+     */
+    void bind(int port, boolean nextFreePort) throws IOException {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            while (true) {
+                final InetSocketAddress address = new InetSocketAddress(port);
+                try {
+                    serverChannel.bind(address);
+                    break;
+                } catch (IOException ex) {
+                    if (!nextFreePort || port == 0 || port >= 0xFFFF) {
+                        throw ex;
+                    }
+                    log.debug("Unable to bind to address " + address, ex);
+                    port++;
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            serverChannel.close();
+            throw ex;
+        }
+        this.channel = serverChannel;
+        this.endpoint = new InetSocketAddress(((InetSocketAddress) serverChannel.getLocalAddress()).getPort());
+    }
+
+    /**
+     * Closes the listening socket. Accepted connections are left open.
+     */
+    void unbind() {
+        final ServerSocketChannel serverChannel = channel;
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException ex) {
+                log.debug("Unable to close listening socket " + endpoint, ex);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections before ending the open ones.
+     */
+    void drain() {
+        draining = true;
+        unbind();
+    }
+
+    /**
+     * Delivers the mails waiting for the batch handler, if any, and stops
+     * its collector thread.
+     */
+    void stopBatcher() {
+        if (batcher != null) {
+            batcher.stop();
+        }
+    }
+
+    /**
+     * Creates the session of a newly accepted connection.
+     *
+     * @return A new session.
+     */
+    MailBuilder newSession() {
+        metrics.connectionsAccepted.increment();
+        return new MailBuilder(endpoint, handler, configuration, metrics);
+    }
+
+    /**
+     * Reads the current values of the metrics of this listener.
+     *
+     * @param bufferPool Buffer pool of the engine, shared by every listener.
+     * @return A snapshot of the metrics.
+     */
+    MetricsSnapshot metricsSnapshot(BufferPool bufferPool) {
+        return MetricsSnapshot.builder()
+                .connectionsAccepted(metrics.connectionsAccepted.sum())
+                .connectionsActive(limiter.getConnectionCount())
+                .connectionsRefused(limiter.getRefusedCount())
+                .connectionsTimedOut(metrics.connectionsTimedOut.sum())
+                .messagesReceived(metrics.messagesReceived.sum())
+                .bytesReceived(metrics.bytesReceived.sum())
+                .handlerQueueDepth(dispatcher.getQueueDepth())
+                .handlerRejections(dispatcher.getRejectionCount())
+                .handlerErrors(dispatcher.getFailureCount())
+                .buffersBorrowed(bufferPool.getBorrowedCount())
+                .buffersIdle(bufferPool.getIdleCount())
+                .commandLatency(metrics.commandStatistics())
+                .transactionLatency(metrics.transactionLatency.statistics())
+                .deliveryLatency(metrics.deliveryLatency.statistics())
+                .handlerTime(metrics.handlerTime.statistics())
+                .build();
+    }
+}
@@ -1,5 +1,8 @@
 package com.github.raphcal.mailbank;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import lombok.AllArgsConstructor;
@@ -17,5 +20,65 @@ public class Mail {
     private List<String> cc;
     private List<String> bcc;
     private Map<String, String> headers;
+    /**
+     * Decoded content, <code>null</code> if
+     * <code>MailBankConfiguration.decodeContent</code> is
+     * <code>false</code>.
+     */
     private String content;
+    /**
+     * Raw content, still transfer encoded. It is closed once
+     * <code>SmtpHandler.mailReceived</code> returns: handlers keeping the
+     * mail to read it later have to call <code>MailBody.retain()</code>.
+     */
+    private MailBody body;
+    /**
+     * Parts of a multipart mail, found while the mail was received or on the
+     * first call to <code>getParts()</code>.
+     */
+    private List<MailPart> parts;
+
+    public Mail(String from, List<String> to, List<String> cc, List<String> bcc, Map<String, String> headers, String content) {
+        this(from, to, cc, bcc, headers, content, null);
+    }
+
+    public Mail(String from, List<String> to, List<String> cc, List<String> bcc, Map<String, String> headers, String content, MailBody body) {
+        this(from, to, cc, bcc, headers, content, body, null);
+    }
+
+    /**
+     * Returns the parts of this mail. Their content is only decoded when
+     * read.
+     *
+     * @return The parts of the body, an empty list if the mail is not a
+     * multipart.
+     * @throws UncheckedIOException If the body has to be scanned and can't
+     * be read.
+     */
+    public List<MailPart> getParts() {
+        List<MailPart> value = parts;
+        if (value == null) {
+            final Map<String, String> allHeaders = getHeaders();
+            try {
+                value = MimeScanner.parts(allHeaders != null ? MailHeaders.copyOf(allHeaders).get(ContentDecoder.CONTENT_TYPE_HEADER) : null, body);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            parts = value;
+        }
+        return value;
+    }
+
+    /**
+     * Returns every value of the given header, like the
+     * <code>Received</code> fields added by each relay.
+     *
+     * @param name Name of the header, case is ignored.
+     * @return The values in the order of the mail, an empty list if the
+     * mail has no such header.
+     */
+    public List<String> getHeaderValues(String name) {
+        final Map<String, String> headers = getHeaders();
+        return headers != null ? MailHeaders.copyOf(headers).getAll(name) : Collections.<String>emptyList();
+    }
 }
@@ -0,0 +1,167 @@
+package com.github.raphcal.mailbank;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Adapts a <code>SmtpHandler</code> to the streaming API: the content of each
+ * mail is accumulated and the handler receives the whole <code>Mail</code>.
+ * The body of the mail is closed once the handler returns, unless it has been
+ * retained.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+class MailAssembler implements StreamingSmtpHandler {
+    private final SmtpHandler handler;
+    private final MailBankConfiguration configuration;
+
+    MailAssembler(SmtpHandler handler, MailBankConfiguration configuration) {
+        this.handler = handler;
+        this.configuration = configuration;
+    }
+
+    @Override
+    public MailListener mailStarted(String from, List<String> recipients) {
+        return configuration.isLazyDecoding()
+                ? new LazyAssembly(from, recipients)
+                : new Assembly(from, recipients);
+    }
+
+    /**
+     * Content of one mail being received, decoded as soon as it is complete.
+     */
+    private class Assembly implements MailListener {
+        protected final String from;
+        protected final List<String> to;
+        protected final BodyBuffer dataBuilder = new BodyBuffer(configuration.getMemoryThreshold(), configuration.getSpillDirectory(), configuration.getBodyStore());
+
+        private final MailHeaders headers = new MailHeaders();
+        private Charset charset = StandardCharsets.US_ASCII;
+        /**
+         * Finds the parts of a multipart mail while its body arrives.
+         */
+        private MimeScanner mimeScanner;
+        private boolean bodyStarted;
+        /**
+         * Body given to the handler, closed at the end of the delivery.
+         */
+        private MailBody body;
+
+        Assembly(String from, List<String> to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void header(String name, String value) {
+            headers.add(name, value);
+            if (ContentDecoder.CONTENT_TYPE_HEADER.equalsIgnoreCase(name)) {
+                charset = ContentDecoder.charsetOf(value);
+            }
+        }
+
+        @Override
+        public void bodyChunk(ByteBuffer chunk) {
+            if (!bodyStarted) {
+                bodyStarted = true;
+                mimeScanner = MimeScanner.forContentType(headers.get(ContentDecoder.CONTENT_TYPE_HEADER));
+            }
+            if (mimeScanner != null) {
+                mimeScanner.line(chunk);
+            }
+            try {
+                dataBuilder.write(chunk);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public Runnable endOfMessage() {
+            body = toBody();
+            final Mail mail;
+            try {
+                mail = build(body);
+            } catch (RuntimeException ex) {
+                MailBody.closeQuietly(body);
+                throw ex;
+            }
+            return () -> {
+                try {
+                    handler.mailReceived(mail);
+                } finally {
+                    MailBody.closeQuietly(body);
+                }
+            };
+        }
+
+        @Override
+        public void deliveryDropped() {
+            MailBody.closeQuietly(body);
+        }
+
+        @Override
+        public void mailAborted() {
+            dataBuilder.reset();
+        }
+
+        protected MailBody toBody() {
+            try {
+                return dataBuilder.toBody();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        protected Mail build(MailBody body) {
+            final List<MailPart> parts = mimeScanner != null ? mimeScanner.parts(body) : Collections.<MailPart>emptyList();
+            if (!configuration.isDecodeContent()) {
+                return new Mail(from, to, null, null, headers, null, body, parts);
+            }
+            final String content;
+            try {
+                content = body.decode(headers.get(ContentDecoder.CONTENT_TRANSFER_ENCODING_HEADER), charset);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return new Mail(from, to, null, null, headers, content, body, parts);
+        }
+    }
+
+    /**
+     * Content of one mail being received, kept raw until read.
+     */
+    private class LazyAssembly extends Assembly {
+        private final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        private int[] headerOffsets = new int[32];
+        private int headerCount;
+
+        LazyAssembly(String from, List<String> to) {
+            super(from, to);
+        }
+
+        @Override
+        public void headerLine(ByteBuffer line) {
+            if (headerCount * 2 == headerOffsets.length) {
+                headerOffsets = Arrays.copyOf(headerOffsets, headerOffsets.length * 2);
+            }
+            final int start = headerBytes.size();
+            headerBytes.write(line.array(), line.arrayOffset() + line.position(), line.remaining());
+            headerOffsets[headerCount * 2] = start;
+            headerOffsets[headerCount * 2 + 1] = headerBytes.size();
+            headerCount++;
+        }
+
+        @Override
+        protected Mail build(MailBody body) {
+            return new LazyMail(from, to, headerBytes.toByteArray(), headerOffsets, headerCount, body, configuration.isDecodeContent());
+        }
+    }
+}
@@ -1,12 +1,17 @@
 package com.github.raphcal.mailbank;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.util.Date;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,40 +19,246 @@ import org.slf4j.LoggerFactory;
  *
  * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
  */
-public class MailBank {
+public class MailBank implements MailBankMXBean {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MailBank.class);
 
-    private final Server server;
-    private final Thread serverThread;
+    // Drain: time between two progress reports, between two checks of the
+    // open connections and given to the connections to close after the 421.
+    private static final long DRAIN_REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final long DRAIN_POLL_INTERVAL = 10;
+    private static final long DRAIN_SHUTDOWN_GRACE = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Thread running the delayed stops of every server.
+     */
+    private static final ScheduledExecutorService STOP_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "mailbank-stop");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final MailEngine engine;
+    /**
+     * <code>true</code> if the engine has been created for this server
+     * alone and has to be closed with it.
+     */
+    private final boolean privateEngine;
+    private final Listener listener;
+    private final int port;
+    private final Mailbox mailbox;
+    /**
+     * Collector of the batches of a <code>BatchSmtpHandler</code>,
+     * <code>null</code> for the other handlers.
+     */
+    private final MailBatcher batcher;
+    private final boolean jmxEnabled;
+    private ObjectName objectName;
 
     private long startTime;
 
-    private final Object runningLock = new Object();
+    private final AtomicBoolean started = new AtomicBoolean(false);
     private final AtomicBoolean stopping = new AtomicBoolean(false);
-    private final Semaphore startSemaphore = new Semaphore(1);
+    private final AtomicBoolean draining = new AtomicBoolean(false);
 
     public MailBank(int port, SmtpHandler servlet) {
-        this.server = new Server(servlet, port, runningLock, startSemaphore);
-        this.serverThread = new Thread(server);
+        this(port, servlet, MailBankConfiguration.defaults());
+    }
+
+    public MailBank(int port, SmtpHandler servlet, MailBankConfiguration configuration) {
+        this(null, port, new MailAssembler(store(servlet, configuration), configuration), configuration, null);
+        replayJournal(configuration);
+    }
+
+    /**
+     * Creates a server storing every received mail in the given mailbox.
+     *
+     * @param port Port to listen to (the next free port is used if taken).
+     * @param mailbox Mailbox receiving the mails.
+     */
+    public MailBank(int port, Mailbox mailbox) {
+        this(port, mailbox, MailBankConfiguration.builder().mailbox(mailbox).build());
+    }
+
+    /**
+     * Creates a server giving the content of received mails to the given
+     * handler while it arrives.
+     *
+     * @param port Port to listen to (the next free port is used if taken).
+     * @param handler Handler receiving the mails.
+     * @param configuration Tuning options.
+     * @return A new server, not yet started.
+     */
+    public static MailBank withStreamingHandler(int port, StreamingSmtpHandler handler, MailBankConfiguration configuration) {
+        return new MailBank(null, port, handler, configuration, null);
+    }
+
+    /**
+     * Creates a server sharing the threads of the given engine.
+     *
+     * @param engine Engine serving the connections.
+     * @param port Port to listen to, 0 for an ephemeral port. Unlike
+     * standalone servers, the port is not changed if it is taken.
+     * @param servlet Handler receiving the mails.
+     */
+    public MailBank(MailEngine engine, int port, SmtpHandler servlet) {
+        this(engine, port, servlet, MailBankConfiguration.defaults());
+    }
+
+    /**
+     * Creates a server sharing the threads of the given engine and storing
+     * every received mail in the given mailbox.
+     *
+     * @param engine Engine serving the connections.
+     * @param port Port to listen to, 0 for an ephemeral port.
+     * @param mailbox Mailbox receiving the mails.
+     */
+    public MailBank(MailEngine engine, int port, Mailbox mailbox) {
+        this(engine, port, mailbox, MailBankConfiguration.builder().mailbox(mailbox).build());
+    }
+
+    /**
+     * Creates a server sharing the threads of the given engine.
+     * <p>
+     * Transport, worker and buffer options are the ones of the engine, the
+     * other options apply to this server only.
+     *
+     * @param engine Engine serving the connections.
+     * @param port Port to listen to, 0 for an ephemeral port.
+     * @param servlet Handler receiving the mails.
+     * @param configuration Options of this server.
+     */
+    public MailBank(MailEngine engine, int port, SmtpHandler servlet, MailBankConfiguration configuration) {
+        this(requireEngine(engine), port, new MailAssembler(store(servlet, configuration), configuration), configuration, null);
+        replayJournal(configuration);
+    }
+
+    /**
+     * Creates a server sharing the threads of the given engine and giving
+     * the content of received mails to the given handler while it arrives.
+     *
+     * @param engine Engine serving the connections.
+     * @param port Port to listen to, 0 for an ephemeral port.
+     * @param handler Handler receiving the mails.
+     * @param configuration Options of this server.
+     * @return A new server, not yet started.
+     */
+    public static MailBank withStreamingHandler(MailEngine engine, int port, StreamingSmtpHandler handler, MailBankConfiguration configuration) {
+        return new MailBank(requireEngine(engine), port, handler, configuration, null);
+    }
+
+    /**
+     * Creates a server giving the received mails by batches to the given
+     * handler.
+     *
+     * @param port Port to listen to (the next free port is used if taken).
+     * @param handler Handler receiving the batches.
+     * @param configuration Tuning options, including the batch windows.
+     * @return A new server, not yet started.
+     */
+    public static MailBank withBatchHandler(int port, BatchSmtpHandler handler, MailBankConfiguration configuration) {
+        return withBatcher(null, port, new MailBatcher(handler, configuration), configuration);
+    }
+
+    /**
+     * Creates a server sharing the threads of the given engine and giving
+     * the received mails by batches to the given handler.
+     *
+     * @param engine Engine serving the connections.
+     * @param port Port to listen to, 0 for an ephemeral port.
+     * @param handler Handler receiving the batches.
+     * @param configuration Options of this server, including the batch
+     * windows.
+     * @return A new server, not yet started.
+     */
+    public static MailBank withBatchHandler(MailEngine engine, int port, BatchSmtpHandler handler, MailBankConfiguration configuration) {
+        return withBatcher(requireEngine(engine), port, new MailBatcher(handler, configuration), configuration);
+    }
+
+    private static MailBank withBatcher(MailEngine engine, int port, MailBatcher batcher, MailBankConfiguration configuration) {
+        final MailBank mailBank = new MailBank(engine, port, new MailAssembler(store(batcher, configuration), configuration), configuration, batcher);
+        mailBank.replayJournal(configuration);
+        return mailBank;
+    }
+
+    private MailBank(MailEngine engine, int port, StreamingSmtpHandler handler, MailBankConfiguration configuration, MailBatcher batcher) {
+        this.privateEngine = engine == null;
+        this.engine = privateEngine ? new MailEngine(configuration) : engine;
+        this.batcher = batcher;
+        this.listener = new Listener(handler, configuration, batcher);
+        this.port = port;
+        this.mailbox = configuration.getMailbox();
+        this.jmxEnabled = configuration.getJmxEnabled() != null
+                ? configuration.getJmxEnabled()
+                : privateEngine;
+    }
+
+    private static MailEngine requireEngine(MailEngine engine) {
+        if (engine == null) {
+            throw new NullPointerException("engine");
+        }
+        return engine;
+    }
+
+    private void replayJournal(MailBankConfiguration configuration) {
+        if (configuration.getJournal() != null && mailbox != null) {
+            // Mails evicted from the mailbox are not kept by the journal.
+            configuration.getJournal().setRetention(mailbox.getMaxSize(), mailbox.getMaxAgeMillis(), TimeUnit.MILLISECONDS);
+            configuration.getJournal().replay(mailbox);
+        }
+    }
+
+    private static SmtpHandler store(final SmtpHandler servlet, final MailBankConfiguration configuration) {
+        final Mailbox mailbox = configuration.getMailbox();
+        final MailJournal journal = configuration.getJournal();
+        if (journal != null && configuration.getHandlerExecutor() == null) {
+            throw new IllegalArgumentException("A journal requires a handlerExecutor: the selector threads would wait for each journal sync.");
+        }
+        SmtpHandler handler = servlet;
+        if (mailbox != null && mailbox != servlet) {
+            final SmtpHandler next = handler;
+            handler = mail -> {
+                mailbox.mailReceived(mail);
+                next.mailReceived(mail);
+            };
+        }
+        if (journal != null) {
+            final SmtpHandler next = handler;
+            handler = mail -> {
+                journal.mailReceived(mail);
+                next.mailReceived(mail);
+            };
+        }
+        return handler;
     }
 
     /**
      * {@inheritDoc}
      */
     public void start() {
-        if (!serverThread.isAlive()) {
-            LOGGER.info("Starting server thread...");
+        if (started.compareAndSet(false, true)) {
+            LOGGER.info("Starting server...");
             startTime = new Date().getTime();
-            serverThread.start();
+            if (batcher != null) {
+                batcher.start();
+            }
             try {
-                startSemaphore.acquire();
-            } catch (InterruptedException ex) {
-                LOGGER.error("Server start has been interrupted.", ex);
+                // Standalone servers keep trying the next port while the
+                // requested one is taken.
+                engine.addListener(listener, port, privateEngine);
+            } catch (IOException ex) {
+                started.set(false);
+                if (batcher != null) {
+                    batcher.stop();
+                }
+                throw new UncheckedIOException("Unable to listen on port " + port, ex);
+            }
+            LOGGER.info("Server listening on " + listener.getEndpoint());
+            if (jmxEnabled) {
+                registerMBean();
             }
-            LOGGER.info("Server listening on " + server.getEndpoint());
         } else {
-            LOGGER.warn("Server is already started and listening on " + server.getEndpoint());
+            LOGGER.warn("Server is already started and listening on " + listener.getEndpoint());
         }
     }
 
@@ -55,20 +266,135 @@ public class MailBank {
      * {@inheritDoc}
      */
     public void stop() {
-        if (serverThread != null) {
-            LOGGER.info("Stopping server " + server.getEndpoint() + "...");
-            serverThread.interrupt();
-
-            synchronized (runningLock) {
-                LOGGER.info("Server stopped (total execution time : "
-                        + TimeUnit.SECONDS.convert(new Date().getTime() - startTime, TimeUnit.MILLISECONDS)
-                        + "s).");
+        if (started.compareAndSet(true, false)) {
+            LOGGER.info("Stopping server " + listener.getEndpoint() + "...");
+            engine.removeListener(listener);
+            unregisterMBean();
+            if (batcher != null) {
+                // Mails already acknowledged are delivered before stopping.
+                batcher.stop();
             }
+            if (privateEngine) {
+                engine.close();
+            }
+            stopping.set(false);
+            LOGGER.info("Server stopped (total execution time : "
+                    + TimeUnit.SECONDS.convert(new Date().getTime() - startTime, TimeUnit.MILLISECONDS)
+                    + "s).");
         } else {
             LOGGER.warn("Server is not started.");
         }
     }
 
+    /**
+     * Stops the server without dropping the mails it received.
+     * <ol>
+     * <li>The port is closed: new connections are refused.</li>
+     * <li>Open connections are ended with a 421 reply as soon as no mail is
+     * in progress. Connections still open when the timeout elapses are
+     * ended the same way, their current mail is aborted.</li>
+     * <li>Mails already acknowledged but still queued for the handler are
+     * waited for, up to the timeout again.</li>
+     * </ol>
+     * Progress is logged every second.
+     *
+     * @param timeout Time given to the connections to end their mail.
+     * @param unit Unit of the timeout.
+     * @return <code>true</code> if every connection ended its mail and
+     * every queued mail has been delivered in time.
+     */
+    public boolean drain(long timeout, TimeUnit unit) {
+        if (!started.get() || !draining.compareAndSet(false, true)) {
+            LOGGER.warn("Server is not started or is already draining.");
+            return false;
+        }
+        try {
+            LOGGER.info("Draining server " + listener.getEndpoint() + ": "
+                    + getConnectionCount() + " connections, "
+                    + queuedMailCount() + " queued mails.");
+            engine.drainListener(listener);
+            boolean drained = awaitConnections(System.nanoTime() + unit.toNanos(timeout));
+            if (!drained) {
+                LOGGER.warn("Drain timeout of server " + listener.getEndpoint() + " elapsed, closing "
+                        + getConnectionCount() + " connections.");
+                engine.shutdownListener(listener);
+                awaitConnections(System.nanoTime() + DRAIN_SHUTDOWN_GRACE);
+            }
+            if (!awaitDeliveries(System.nanoTime() + unit.toNanos(timeout))) {
+                LOGGER.warn("Drain of server " + listener.getEndpoint() + " ended with "
+                        + queuedMailCount() + " queued mails.");
+                drained = false;
+            }
+            stop();
+            return drained;
+        } finally {
+            draining.set(false);
+        }
+    }
+
+    /**
+     * Indicates if <code>drain</code> is in progress.
+     *
+     * @return <code>true</code> while draining.
+     */
+    @Override
+    public boolean isDraining() {
+        return draining.get();
+    }
+
+    private boolean awaitConnections(long deadline) {
+        long nextReport = System.nanoTime() + DRAIN_REPORT_INTERVAL;
+        while (getConnectionCount() > 0) {
+            final long now = System.nanoTime();
+            if (now >= deadline) {
+                return false;
+            }
+            if (now >= nextReport) {
+                reportDrain(deadline - now);
+                nextReport = now + DRAIN_REPORT_INTERVAL;
+            }
+            try {
+                Thread.sleep(Math.min(DRAIN_POLL_INTERVAL, TimeUnit.NANOSECONDS.toMillis(deadline - now) + 1));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean awaitDeliveries(long deadline) {
+        try {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                final long wait = Math.min(remaining, DRAIN_REPORT_INTERVAL);
+                if (listener.getDispatcher().awaitEmpty(wait, TimeUnit.NANOSECONDS)
+                        && (batcher == null || batcher.awaitEmpty(wait, TimeUnit.NANOSECONDS))) {
+                    return true;
+                }
+                reportDrain(deadline - System.nanoTime());
+            }
+            return queuedMailCount() == 0;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Number of accepted mails not yet given to the handler.
+     */
+    private int queuedMailCount() {
+        return getHandlerQueueDepth() + (batcher != null ? batcher.getPendingCount() : 0);
+    }
+
+    private void reportDrain(long remainingNanos) {
+        LOGGER.info("Draining server " + listener.getEndpoint() + ": "
+                + getConnectionCount() + " connections, "
+                + queuedMailCount() + " queued mails, "
+                + TimeUnit.NANOSECONDS.toMillis(Math.max(remainingNanos, 0)) + " ms left.");
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -76,16 +402,7 @@ public class MailBank {
         if (stopping.compareAndSet(false, true)) {
             LOGGER.info("Server will stop in " + delay + ' ' + unit.name().toLowerCase() + '.');
 
-            final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1);
-            executorService.schedule(new Runnable() {
-
-                @Override
-                public void run() {
-                    stop();
-                    executorService.shutdown();
-                }
-
-            }, delay, unit);
+            STOP_SCHEDULER.schedule(() -> stop(), delay, unit);
         }
     }
 
@@ -93,7 +410,131 @@ public class MailBank {
      * {@inheritDoc}
      */
     public InetSocketAddress getEndpoint() {
-        return server.getEndpoint();
+        return listener.getEndpoint();
+    }
+
+    /**
+     * Current values of the metrics of this server.
+     *
+     * @return A snapshot of the metrics.
+     */
+    @Override
+    public MetricsSnapshot getMetrics() {
+        return listener.metricsSnapshot(engine.getBufferPool());
+    }
+
+    /**
+     * Number of mails waiting for or being delivered by the handler executor.
+     *
+     * @return The current depth of the handler queue.
+     */
+    @Override
+    public int getHandlerQueueDepth() {
+        return listener.getDispatcher().getQueueDepth();
+    }
+
+    /**
+     * Number of mails refused because the handler queue was full.
+     *
+     * @return The number of rejections since the creation of this server.
+     */
+    @Override
+    public long getHandlerRejectionCount() {
+        return listener.getDispatcher().getRejectionCount();
     }
 
+    /**
+     * Number of open client connections.
+     *
+     * @return The number of connections.
+     */
+    @Override
+    public int getConnectionCount() {
+        return listener.getLimiter().getConnectionCount();
+    }
+
+    /**
+     * Number of connections refused because of
+     * <code>maxConnections</code> or <code>maxConnectionsPerAddress</code>.
+     *
+     * @return The number of refused connections since the creation of this
+     * server.
+     */
+    @Override
+    public long getRefusedConnectionCount() {
+        return listener.getLimiter().getRefusedCount();
+    }
+
+    /**
+     * Number of read buffers currently held by connections.
+     *
+     * @return The number of borrowed buffers.
+     */
+    @Override
+    public int getBorrowedBufferCount() {
+        return engine.getBufferPool().getBorrowedCount();
+    }
+
+    /**
+     * Number of read buffers waiting for reuse in the pool.
+     *
+     * @return The number of idle buffers.
+     */
+    @Override
+    public int getIdleBufferCount() {
+        return engine.getBufferPool().getIdleCount();
+    }
+
+    /**
+     * Number of read buffers borrowed since the creation of this server.
+     *
+     * @return The number of borrows.
+     */
+    public long getBufferBorrowCount() {
+        return engine.getBufferPool().getBorrowCount();
+    }
+
+    /**
+     * Number of read buffers allocated because the pool was empty.
+     *
+     * @return The number of allocations since the creation of this server.
+     */
+    public long getBufferAllocationCount() {
+        return engine.getBufferPool().getAllocationCount();
+    }
+
+    /**
+     * Mailbox storing the received mails.
+     *
+     * @return The mailbox given to the constructor or by the configuration,
+     * <code>null</code> if none.
+     */
+    public Mailbox getMailbox() {
+        return mailbox;
+    }
+
+    private void registerMBean() {
+        try {
+            final ObjectName name = new ObjectName("com.github.raphcal.mailbank:type=MailBank,port=" + listener.getEndpoint().getPort());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException ex) {
+            LOGGER.warn("Unable to register the MBean of server " + listener.getEndpoint(), ex);
+        }
+    }
+
+    private void unregisterMBean() {
+        final ObjectName name = objectName;
+        if (name != null) {
+            objectName = null;
+            try {
+                final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+                if (mBeanServer.isRegistered(name)) {
+                    mBeanServer.unregisterMBean(name);
+                }
+            } catch (JMException ex) {
+                LOGGER.warn("Unable to unregister MBean " + name, ex);
+            }
+        }
+    }
 }
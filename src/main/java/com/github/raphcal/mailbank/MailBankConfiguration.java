@@ -0,0 +1,272 @@
+package com.github.raphcal.mailbank;
+
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Tuning options of a <code>MailBank</code>.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@Value
+@Builder
+public class MailBankConfiguration {
+
+    /**
+     * How client connections are served.
+     */
+    @Builder.Default
+    Transport transport = Transport.SELECTOR;
+
+    /**
+     * Number of worker selector threads. When 0, accepting, reading and
+     * writing are all done by the server thread.
+     * <p>
+     * When greater than 0, the server thread only accepts connections and
+     * hands them to the workers. <code>SmtpHandler</code> may then be called
+     * concurrently from several threads.
+     */
+    @Builder.Default
+    int workerCount = 0;
+
+    /**
+     * How accepted connections are distributed among workers.
+     */
+    @Builder.Default
+    WorkerSelection workerSelection = WorkerSelection.ROUND_ROBIN;
+
+    /**
+     * Executor running the <code>SmtpHandler</code> calls. When
+     * <code>null</code>, the handler is called by the selector thread which
+     * received the mail.
+     * <p>
+     * The executor is not shut down by <code>MailBank</code>.
+     */
+    Executor handlerExecutor;
+
+    /**
+     * Maximum number of mails waiting for or being delivered by
+     * <code>handlerExecutor</code>.
+     */
+    @Builder.Default
+    int handlerQueueCapacity = 1024;
+
+    /**
+     * Maximum number of mails given to a <code>BatchSmtpHandler</code> call.
+     */
+    @Builder.Default
+    int batchMaxCount = 100;
+
+    /**
+     * Size in bytes of the bodies after which a batch is closed, including
+     * the mail going past it. 0 means no limit.
+     */
+    @Builder.Default
+    long batchMaxBytes = 16 * 1024 * 1024;
+
+    /**
+     * Maximum time in milliseconds a batch waits for more mails after its
+     * first one.
+     */
+    @Builder.Default
+    long batchLinger = 50;
+
+    /**
+     * Maximum number of mails waiting for the batch collector. When full,
+     * received mails are handled according to <code>backpressure</code>
+     * until a batch has been delivered.
+     */
+    @Builder.Default
+    int batchQueueCapacity = 10000;
+
+    /**
+     * What to do with a received mail when the handler queue is full.
+     */
+    @Builder.Default
+    Backpressure backpressure = Backpressure.REJECT;
+
+    /**
+     * Maximum number of open client connections. Further connections are
+     * refused with a 421 reply. 0 means no limit.
+     */
+    @Builder.Default
+    int maxConnections = 0;
+
+    /**
+     * Maximum number of open connections from the same remote address. 0
+     * means no limit.
+     */
+    @Builder.Default
+    int maxConnectionsPerAddress = 0;
+
+    /**
+     * Time in milliseconds after which a connection which sent nothing,
+     * even in the middle of a mail, is closed with a 421 reply. 0 means no
+     * timeout.
+     */
+    @Builder.Default
+    long idleTimeout = 3 * 60 * 1000;
+
+    /**
+     * Time in milliseconds given to the client to send its next command
+     * after the last reply. It does not apply while the content of a mail is
+     * received. 0 means no timeout.
+     */
+    @Builder.Default
+    long commandTimeout = 5 * 60 * 1000;
+
+    /**
+     * Maximum duration in milliseconds of a connection. 0 means no limit.
+     */
+    @Builder.Default
+    long sessionTimeout = 0;
+
+    /**
+     * Size in bytes of the direct buffers used to read commands.
+     */
+    @Builder.Default
+    int commandBufferSize = 4 * 1024;
+
+    /**
+     * Size in bytes of the direct buffers used to read the content of mails.
+     */
+    @Builder.Default
+    int dataBufferSize = 64 * 1024;
+
+    /**
+     * Maximum number of idle read buffers of each size kept for reuse.
+     */
+    @Builder.Default
+    int bufferPoolCapacity = 256;
+
+    /**
+     * Size in bytes above which a mail body is written to a temporary file
+     * instead of being kept in memory.
+     */
+    @Builder.Default
+    int memoryThreshold = 1024 * 1024;
+
+    /**
+     * When not <code>null</code>, received bodies are hashed while they
+     * arrive and mails having the same body share a single copy of it and of
+     * its decoded content.
+     */
+    BodyStore bodyStore;
+
+    /**
+     * Directory of the temporary body files. When <code>null</code>, the
+     * default temporary directory is used.
+     */
+    Path spillDirectory;
+
+    /**
+     * Maximum size in bytes of a mail body. Larger mails are refused with a
+     * 552 reply. 0 means no limit.
+     */
+    @Builder.Default
+    long maxMessageSize = 0;
+
+    /**
+     * Maximum length in bytes of a line of mail content, line ending
+     * excluded. A longer line is discarded until its line feed and the mail
+     * is refused with a 500 reply. Command lines are limited to 1000 bytes.
+     */
+    @Builder.Default
+    int maxLineLength = 64 * 1024;
+
+    /**
+     * When <code>false</code>, the content of received mails is not decoded:
+     * <code>Mail.content</code> is <code>null</code> and only the raw
+     * <code>Mail.body</code> is available.
+     */
+    @Builder.Default
+    boolean decodeContent = true;
+
+    /**
+     * When <code>true</code>, mails given to <code>SmtpHandler</code> are
+     * instances of <code>LazyMail</code>: headers and content are parsed and
+     * decoded by the first call to their getter, on the calling thread.
+     * Their content has to be read during <code>mailReceived</code>: spilled
+     * bodies are deleted once it returns, unless retained.
+     * <p>
+     * When <code>false</code>, the content is decoded before the call and
+     * mails may be kept and read later.
+     */
+    @Builder.Default
+    boolean lazyDecoding = false;
+
+    /**
+     * When <code>true</code>, the server registers a
+     * <code>MailBankMXBean</code> in the platform MBean server while it is
+     * started. When <code>null</code>, standalone servers register one and
+     * servers sharing a <code>MailEngine</code> do not.
+     */
+    Boolean jmxEnabled;
+
+    /**
+     * When not <code>null</code>, every mail received by a
+     * <code>SmtpHandler</code> based server is also stored in this mailbox,
+     * before being given to the handler.
+     */
+    Mailbox mailbox;
+
+    /**
+     * When not <code>null</code>, every mail received by a
+     * <code>SmtpHandler</code> based server is appended to this journal
+     * before being stored in <code>mailbox</code> and given to the handler.
+     * The journal is replayed in <code>mailbox</code> when the server is
+     * created, with the age the mails had when the server stopped. Its
+     * retention is then set to the limits of the mailbox.
+     * <p>
+     * Each mail waits for the sync of the journal before being acknowledged:
+     * <code>handlerExecutor</code> is required to keep the selector threads
+     * reading meanwhile, <code>MailBank</code> throws an
+     * <code>IllegalArgumentException</code> without it.
+     * <p>
+     * The journal is not closed by <code>MailBank</code>.
+     */
+    MailJournal journal;
+
+    public static MailBankConfiguration defaults() {
+        return builder().build();
+    }
+
+    public static enum Transport {
+        /**
+         * Non-blocking channels multiplexed by the server thread and the
+         * worker selector threads.
+         */
+        SELECTOR,
+        /**
+         * One thread per connection reading and writing blocking streams.
+         * Threads are virtual on Java 21 and later, platform threads
+         * otherwise. Worker settings are ignored.
+         */
+        BLOCKING
+    }
+
+    public static enum WorkerSelection {
+        /**
+         * Each worker receives a connection in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * The worker with the fewest open connections receives the connection.
+         */
+        LEAST_LOADED
+    }
+
+    public static enum Backpressure {
+        /**
+         * The mail is refused with a 451 temporary failure, the client is
+         * expected to send it again later.
+         */
+        REJECT,
+        /**
+         * The connection stops being read until the mail can be queued.
+         */
+        SUSPEND_READS
+    }
+}
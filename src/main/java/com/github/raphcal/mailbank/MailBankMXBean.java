@@ -0,0 +1,27 @@
+package com.github.raphcal.mailbank;
+
+/**
+ * Management interface of a <code>MailBank</code>, registered in the platform
+ * MBean server under
+ * <code>com.github.raphcal.mailbank:type=MailBank,port=&lt;port&gt;</code>.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public interface MailBankMXBean {
+
+    MetricsSnapshot getMetrics();
+
+    int getConnectionCount();
+
+    long getRefusedConnectionCount();
+
+    int getHandlerQueueDepth();
+
+    long getHandlerRejectionCount();
+
+    int getBorrowedBufferCount();
+
+    int getIdleBufferCount();
+
+    boolean isDraining();
+}
@@ -0,0 +1,272 @@
+package com.github.raphcal.mailbank;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Collector stage of a <code>BatchSmtpHandler</code>: received mails are
+ * queued by the delivering threads and grouped into batches by a thread of
+ * its own.
+ * <p>
+ * The queue never blocks the delivering thread: once it holds
+ * <code>batchQueueCapacity</code> mails, the dispatcher refuses the next
+ * mails according to the configured <code>Backpressure</code> until a batch
+ * has been delivered. Mails delivered concurrently when it fills up may go
+ * slightly past the capacity.
+ * <p>
+ * The body of a queued mail is retained until its batch has been given to
+ * the handler.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@Slf4j
+class MailBatcher implements SmtpHandler {
+    private static final AtomicInteger COLLECTOR_COUNT = new AtomicInteger();
+    /**
+     * Queued by <code>stop()</code> to end the collector after the mails
+     * queued before it.
+     */
+    private static final Mail END = new Mail(null, null, null, null, null, null);
+
+    private final BatchSmtpHandler handler;
+    private final int maxCount;
+    private final long maxBytes;
+    private final long lingerNanos;
+    private final int capacity;
+    private final BlockingQueue<Mail> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * Mails queued or in the batch being collected or delivered.
+     */
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    private final Condition delivered = pendingLock.newCondition();
+
+    /**
+     * Called by the collector thread after each batch, to resume the
+     * connections waiting for room in the queue.
+     */
+    private volatile Runnable capacityListener;
+
+    /**
+     * Mails are queued under the read lock, the collector is started and
+     * stopped under the write lock: no mail can be queued after the end of
+     * the collector.
+     */
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private volatile boolean running;
+    private Thread collector;
+
+    MailBatcher(BatchSmtpHandler handler, MailBankConfiguration configuration) {
+        this.handler = handler;
+        this.maxCount = Math.max(1, configuration.getBatchMaxCount());
+        this.maxBytes = configuration.getBatchMaxBytes() > 0 ? configuration.getBatchMaxBytes() : Long.MAX_VALUE;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getBatchLinger());
+        this.capacity = Math.max(1, configuration.getBatchQueueCapacity());
+    }
+
+    /**
+     * Queues the given mail for the next batch.
+     *
+     * @param mail Received mail.
+     * @throws IllegalStateException If the collector is stopped.
+     */
+    @Override
+    public void mailReceived(Mail mail) {
+        stateLock.readLock().lock();
+        try {
+            if (!running) {
+                throw new IllegalStateException("Batch collector is stopped, mail from " + mail.getFrom() + " is lost");
+            }
+            pendingCount.incrementAndGet();
+            if (mail.getBody() != null) {
+                mail.getBody().retain();
+            }
+            queue.add(mail);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Indicates if a new mail may be queued.
+     *
+     * @return <code>true</code> if the collector is running and its queue is
+     * not full.
+     */
+    boolean hasCapacity() {
+        return running && pendingCount.get() < capacity;
+    }
+
+    void setCapacityListener(Runnable capacityListener) {
+        this.capacityListener = capacityListener;
+    }
+
+    /**
+     * Starts the collector thread.
+     */
+    synchronized void start() {
+        stateLock.writeLock().lock();
+        try {
+            if (collector == null) {
+                collector = new Thread(this::collect, "mailbank-batch-" + COLLECTOR_COUNT.incrementAndGet());
+                collector.setDaemon(true);
+                collector.start();
+                running = true;
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delivers the queued mails and stops the collector thread. Mails
+     * received afterwards are refused.
+     */
+    synchronized void stop() {
+        final Thread thread;
+        stateLock.writeLock().lock();
+        try {
+            thread = collector;
+            if (thread == null) {
+                return;
+            }
+            collector = null;
+            running = false;
+            queue.add(END);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        // Wakes up the connections still waiting for room in the queue.
+        notifyCapacity();
+    }
+
+    /**
+     * Blocks the calling thread until every queued mail has been given to
+     * the handler.
+     *
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of the timeout.
+     * @return <code>true</code> if no mail is waiting, <code>false</code> if
+     * the timeout elapsed first.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        pendingLock.lock();
+        try {
+            while (pendingCount.get() > 0) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = delivered.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    /**
+     * Number of mails not yet given to the handler.
+     *
+     * @return The number of queued mails.
+     */
+    int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    private void collect() {
+        final List<Mail> batch = new ArrayList<>(Math.min(maxCount, 1024));
+        boolean collecting = true;
+        while (collecting) {
+            try {
+                Mail mail = queue.take();
+                final long deadline = System.nanoTime() + lingerNanos;
+                long bytes = 0;
+                while (mail != END) {
+                    batch.add(mail);
+                    bytes += sizeOf(mail);
+                    if (batch.size() >= maxCount || bytes >= maxBytes) {
+                        break;
+                    }
+                    // Mails already queued are taken without waiting.
+                    mail = queue.poll();
+                    if (mail == null) {
+                        final long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0 || (mail = queue.poll(remaining, TimeUnit.NANOSECONDS)) == null) {
+                            break;
+                        }
+                    }
+                }
+                collecting = mail != END;
+            } catch (InterruptedException ex) {
+                collecting = false;
+            }
+            deliver(batch);
+        }
+    }
+
+    private void deliver(List<Mail> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final int count = batch.size();
+        try {
+            handler.mailsReceived(Collections.unmodifiableList(new ArrayList<>(batch)));
+        } catch (RuntimeException ex) {
+            log.error("Batch handler failed to process " + count + " mails", ex);
+        } finally {
+            for (final Mail mail : batch) {
+                MailBody.closeQuietly(mail.getBody());
+            }
+            batch.clear();
+            pendingCount.addAndGet(-count);
+            pendingLock.lock();
+            try {
+                delivered.signalAll();
+            } finally {
+                pendingLock.unlock();
+            }
+            notifyCapacity();
+        }
+    }
+
+    private void notifyCapacity() {
+        final Runnable listener = capacityListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private static long sizeOf(Mail mail) {
+        final MailBody body = mail.getBody();
+        if (body != null) {
+            return body.getSize();
+        }
+        final String content = mail.getContent();
+        return content != null ? content.length() : 0;
+    }
+}
@@ -0,0 +1,368 @@
+package com.github.raphcal.mailbank;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Raw content of a received mail, as sent by the client (still transfer
+ * encoded).
+ * <p>
+ * Small bodies are kept in memory. Bodies larger than the configured
+ * threshold are stored in a temporary file. Bodies replayed from a
+ * <code>MailJournal</code> are read from its memory-mapped segments.
+ * <p>
+ * A body belongs to the delivery of its mail: once
+ * <code>SmtpHandler.mailReceived</code> returns, the body is closed and its
+ * temporary file deleted. A handler keeping the mail for later, like
+ * <code>Mailbox</code>, has to call <code>retain()</code> during the
+ * delivery and <code>close()</code> once done with the body.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@Slf4j
+public class MailBody implements Closeable {
+
+    private final byte[] bytes;
+    private final Path file;
+    private final ByteBuffer mapped;
+    private final long size;
+
+    /**
+     * Body of a <code>BodyStore</code> shared by this instance,
+     * <code>null</code> if the body is not shared.
+     */
+    private final BodyStore.Entry sharedEntry;
+    /**
+     * References to this body: the delivery of its mail and one for each
+     * call to <code>retain()</code>.
+     */
+    private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+    private MailBody(byte[] bytes, Path file, ByteBuffer mapped, long size, BodyStore.Entry sharedEntry) {
+        this.bytes = bytes;
+        this.file = file;
+        this.mapped = mapped;
+        this.size = size;
+        this.sharedEntry = sharedEntry;
+    }
+
+    private MailBody(byte[] bytes, Path file, ByteBuffer mapped, long size) {
+        this(bytes, file, mapped, size, null);
+    }
+
+    static MailBody inMemory(byte[] bytes) {
+        return new MailBody(bytes, null, null, bytes.length);
+    }
+
+    static MailBody inFile(Path file, long size) {
+        return new MailBody(null, file, null, size);
+    }
+
+    static MailBody mapped(ByteBuffer buffer) {
+        return new MailBody(null, null, buffer, buffer.remaining());
+    }
+
+    /**
+     * Creates a new reference to a stored body.
+     *
+     * @param entry Stored body.
+     * @return A body reading the stored one, releasing it when closed.
+     */
+    static MailBody shared(BodyStore.Entry entry) {
+        final MailBody body = entry.getBody();
+        return new MailBody(body.bytes, body.file, body.mapped, body.size, entry);
+    }
+
+    /**
+     * Indicates if this body is shared with other mails through a
+     * <code>BodyStore</code>.
+     *
+     * @return <code>true</code> if the body is shared.
+     */
+    public boolean isShared() {
+        return sharedEntry != null;
+    }
+
+    /**
+     * Keeps this body after the delivery of its mail. Each call has to be
+     * matched by a call to <code>close()</code>.
+     *
+     * @return This body.
+     * @throws IllegalStateException If the body has already been closed.
+     */
+    public MailBody retain() {
+        int count;
+        do {
+            count = referenceCount.get();
+            if (count == 0) {
+                throw new IllegalStateException("Body is already closed");
+            }
+        } while (!referenceCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Backing array of a body kept in memory, without copy.
+     *
+     * @return The bytes of the body or <code>null</code> if it is in a file
+     * or in a journal.
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * Size of the body in bytes.
+     *
+     * @return The size of the body.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Indicates if the body has been kept in memory.
+     *
+     * @return <code>true</code> if the body is in memory, <code>false</code>
+     * if it has been written to a temporary file or to a journal.
+     */
+    public boolean isInMemory() {
+        return bytes != null;
+    }
+
+    /**
+     * Path of the temporary file containing the body.
+     *
+     * @return The file or <code>null</code> if the body is in memory or in a
+     * journal.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Opens a new stream reading the body from its start.
+     *
+     * @return A new stream.
+     * @throws IOException If the temporary file can't be opened.
+     */
+    public InputStream openStream() throws IOException {
+        if (bytes != null) {
+            return new ByteArrayInputStream(bytes);
+        } else if (mapped != null) {
+            return new ByteBufferInputStream(mapped.duplicate());
+        }
+        return Files.newInputStream(file);
+    }
+
+    /**
+     * Opens a new stream reading a part of the body.
+     *
+     * @param offset Index of the first byte to read.
+     * @param length Number of bytes to read.
+     * @return A new stream.
+     * @throws IOException If the temporary file can't be opened.
+     */
+    public InputStream openStream(long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " is outside of a body of " + size + " bytes");
+        }
+        if (bytes != null) {
+            return new ByteArrayInputStream(bytes, (int) offset, (int) length);
+        } else if (mapped != null) {
+            final ByteBuffer range = mapped.duplicate();
+            ((Buffer) range).position(range.position() + (int) offset);
+            ((Buffer) range).limit(range.position() + (int) length);
+            return new ByteBufferInputStream(range);
+        }
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        channel.position(offset);
+        return new RangeInputStream(Channels.newInputStream(channel), length);
+    }
+
+    /**
+     * Read-only view of the body. Bodies stored in a file are memory-mapped.
+     *
+     * @return A read-only buffer.
+     * @throws IOException If the temporary file can't be mapped.
+     */
+    public ByteBuffer asByteBuffer() throws IOException {
+        if (bytes != null) {
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        } else if (mapped != null) {
+            return mapped.asReadOnlyBuffer();
+        }
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Copies the body in a new array.
+     *
+     * @return The bytes of the body.
+     * @throws IOException If the temporary file can't be read.
+     */
+    public byte[] toByteArray() throws IOException {
+        if (bytes != null) {
+            return bytes.clone();
+        } else if (mapped != null) {
+            final byte[] copy = new byte[mapped.remaining()];
+            mapped.duplicate().get(copy);
+            return copy;
+        }
+        return Files.readAllBytes(file);
+    }
+
+    /**
+     * Decodes the body as text. The content of a shared body is decoded
+     * once for every mail sharing it.
+     *
+     * @param transferEncoding Value of the Content-Transfer-Encoding header.
+     * @param charset Charset of the content.
+     * @return The decoded content.
+     * @throws IOException If the temporary file can't be read.
+     */
+    String decode(String transferEncoding, Charset charset) throws IOException {
+        if (sharedEntry != null) {
+            return sharedEntry.decode(transferEncoding, charset);
+        }
+        final byte[] content = bytes != null ? bytes : toByteArray();
+        return ContentDecoder.decode(content, content.length, transferEncoding, charset);
+    }
+
+    /**
+     * Releases a reference to this body. With the last one, the temporary
+     * file, if any, is deleted. Journal bodies are left untouched. Shared
+     * bodies release their reference to the stored body instead.
+     *
+     * @throws IOException If the file can't be deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        int count;
+        do {
+            count = referenceCount.get();
+            if (count == 0) {
+                return;
+            }
+        } while (!referenceCount.compareAndSet(count, count - 1));
+        if (count > 1) {
+            return;
+        }
+        if (sharedEntry != null) {
+            sharedEntry.release();
+        } else if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Closes the given body, logging the failure to delete its file.
+     *
+     * @param body Body to close, may be <code>null</code>.
+     */
+    static void closeQuietly(MailBody body) {
+        if (body != null) {
+            try {
+                body.close();
+            } catch (IOException ex) {
+                log.warn("Unable to delete body file " + body.getFile(), ex);
+            }
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return len == 0 ? 0 : -1;
+            }
+            final int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Stream stopping after a given number of bytes.
+     */
+    private static class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            final int read = in.read();
+            if (read >= 0) {
+                remaining--;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return len == 0 ? 0 : -1;
+            }
+            final int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -1,21 +1,17 @@
 package com.github.raphcal.mailbank;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -27,179 +23,629 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class MailBuilder {
     private static final String LINE_ENDING = "\r\n";
-    private static final String CONTENT_TRANSFER_ENCODING_HEADER = "Content-Transfer-Encoding";
-    private static final String QUOTED_PRINTABLE_CONTENT_TRANSFER_ENCODING = "quoted-printable";
+    /**
+     * Maximum length of a command line, line ending excluded
+     * (RFC 5321 §4.5.3.1).
+     */
+    private static final int MAX_COMMAND_LENGTH = 1000;
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    // Fixed replies, encoded once.
+    private static final ByteBuffer OK = encode("250 OK");
+    private static final ByteBuffer SENDER_OK = encode("250 Sender OK");
+    private static final ByteBuffer RECIPIENT_OK = encode("250 Recipient OK");
+    private static final ByteBuffer DATA_OK = encode("250 Data OK");
+    private static final ByteBuffer START_MAIL_INPUT = encode("354 Enter mail, end with '.' on a line by itself");
+    private static final ByteBuffer CLOSING = encode("221 Closing connection");
+    private static final ByteBuffer QUEUE_FULL = encode("451 Requested action aborted: mail queue is full");
+    private static final ByteBuffer LOCAL_ERROR = encode("451 Requested action aborted: local error in processing");
+    private static final ByteBuffer BAD_SEQUENCE = encode("503 Bad sequence of commands, MAIL expected");
+    private static final ByteBuffer SIZE_EXCEEDED = encode("552 Message size exceeds fixed maximum message size");
+    private static final ByteBuffer LINE_TOO_LONG = encode("500 Line too long");
+
+    /**
+     * Sent by the server to a connection refused because of the connection
+     * limits.
+     */
+    static final ByteBuffer TOO_MANY_CONNECTIONS = encode("421 Too many connections, try again later");
+    /**
+     * Sent by the reactor before closing a connection which timed out.
+     */
+    static final ByteBuffer TIMEOUT = encode("421 Timeout, closing connection");
+    /**
+     * Sent to the connections ended by a drain of the server.
+     */
+    static final ByteBuffer SHUTTING_DOWN = encode("421 Service shutting down, try again later");
 
     private Status status = Status.INITIAL;
-    private final ByteArrayOutputStream dataBuilder = new ByteArrayOutputStream();
-    private String response;
+    private final LineScanner scanner = new LineScanner();
+    private final StreamingSmtpHandler handler;
+    private final long maxMessageSize;
+    private final int maxLineLength;
+    /**
+     * Set when the body of the current mail can't be kept, the end of the
+     * mail is then answered by this reply instead of being delivered.
+     */
+    private ByteBuffer bodyError;
+    private final Queue<ByteBuffer> responses = new ArrayDeque<>();
+    /**
+     * Set when the session has to end after the current mail.
+     */
+    private boolean draining;
 
     private final String hostName;
     private String client;
     private String from;
     private List<String> to = new ArrayList<>();
-    private Map<String, String> headers = new LinkedHashMap<>();
 
-    private Charset charset = StandardCharsets.US_ASCII;
+    /**
+     * Listener of the mail being received.
+     */
+    private MailListener listener;
+    /**
+     * Listener of the received mail whose delivery has been returned by
+     * <code>endOfMessage()</code> but not accepted yet.
+     */
+    private MailListener delivering;
+    private long bodySize;
+    private ByteBuffer chunk;
+    /**
+     * Header being received, its folded lines joined.
+     */
+    private byte[] headerBytes = new byte[256];
+    private ByteBuffer header = ByteBuffer.wrap(headerBytes);
+    private int headerLength;
+
+    private final Metrics metrics;
+    // System.nanoTime() values of the start of the current transaction and
+    // of the end of the DATA of the current mail.
+    private long transactionStartedAt;
+    private long dataEndedAt;
+
+    public MailBuilder(InetSocketAddress endpoint, StreamingSmtpHandler handler, MailBankConfiguration configuration) {
+        this(endpoint, handler, configuration, new Metrics());
+    }
 
-    public MailBuilder(InetSocketAddress endpoint) {
+    MailBuilder(InetSocketAddress endpoint, StreamingSmtpHandler handler, MailBankConfiguration configuration, Metrics metrics) {
+        this.metrics = metrics;
+        transactionStartedAt = System.nanoTime();
         hostName = endpoint.getHostName();
-        response = "220 " + hostName + " SMTP Ready" + LINE_ENDING;
+        this.handler = handler;
+        maxMessageSize = configuration.getMaxMessageSize();
+        maxLineLength = configuration.getMaxLineLength();
+        reply("220 " + hostName + " SMTP Ready" + LINE_ENDING);
     }
 
-    public void feedBytes(ByteBuffer buffer) throws IOException {
-        String line = readLine(buffer);
-        while (line != null) {
-            log.trace("< " + line);
-            if (status == Status.HEADERS) {
-                if (line.isEmpty()) {
+    /**
+     * Reads every complete line of the given buffer. Reading stops when the
+     * end of a mail is reached, the remaining bytes are left in the buffer
+     * until the mail has been delivered.
+     * <p>
+     * Lines longer than the allowed length are discarded: a command is
+     * answered by a 500 reply, a mail is refused at its end.
+     *
+     * @param buffer Buffer to read, in read mode.
+     */
+    public void feedBytes(ByteBuffer buffer) {
+        while (status != Status.DELIVERING && status != Status.DONE
+                && scanLine(buffer)) {
+            if (log.isTraceEnabled()) {
+                log.trace("< " + scanner.toString(CHARSET));
+            }
+            if (scanner.isTooLong()) {
+                lineTooLong();
+            } else if (status == Status.HEADERS) {
+                if (scanner.isEmpty()) {
+                    flushHeader();
                     status = Status.BODY;
-                } else if(line.contains(":")) {
-                    String[] headerAndValue = line.split(": *", 2);
-                    headers.put(headerAndValue[0], headerAndValue[1]);
-
-                    Pattern charsetPattern = Pattern.compile("charset=([^;]+)");
-                    Matcher matcher;
-                    if ("Content-Type".equals(headerAndValue[0]) && (matcher = charsetPattern.matcher(headerAndValue[1])).find()) {
-                        charset = Charset.forName(matcher.group(1));
-                    }
+                } else if (headerLength > 0 && isContinuation(scanner.bytes()[0])) {
+                    appendHeader();
+                } else if (scanner.indexOf(':') >= 0) {
+                    flushHeader();
+                    appendHeader();
+                } else if (scanner.is('.')) {
+                    flushHeader();
+                    endOfData();
+                } else {
+                    flushHeader();
+                    writeBodyLine();
+                }
+            } else if (status == Status.BODY) {
+                if (scanner.is('.')) {
+                    endOfData();
                 } else {
-                    dataBuilder.write(line.getBytes(charset));
-                    dataBuilder.write('\r');
-                    dataBuilder.write('\n');
+                    writeBodyLine();
                 }
-            } else if (status != Status.BODY) {
-                final String[] args = line.split("[ :]");
+            } else {
+                handleCommand();
+            }
+            endIfDraining();
+        }
+    }
 
-                final Command command = Command.valueOf(args[0].toUpperCase());
+    private boolean scanLine(ByteBuffer buffer) {
+        scanner.setMaxLength(isReceivingContent() ? maxLineLength : MAX_COMMAND_LENGTH);
+        return scanner.scan(buffer);
+    }
 
-                if (command == Command.QUIT) {
-                    response = "221 Closing connection" + LINE_ENDING;
-                    status = Status.DONE;
-                    return;
-                }
+    /**
+     * Answers a command line too long right away. Inside a mail, the mail
+     * is refused at its end.
+     */
+    private void lineTooLong() {
+        if (!isReceivingContent()) {
+            reply(LINE_TOO_LONG);
+        } else if (bodyError == null) {
+            bodyError = LINE_TOO_LONG;
+            abortMail();
+        }
+    }
 
-                if (!status.getExpected().contains(command)) {
-                    response = "500-" + status + ", expected one of " + status.getExpected() + ", but received: " + command + LINE_ENDING
-                            + "221 Closing connection" + LINE_ENDING;
-                    status = Status.DONE;
-                    return;
-                }
+    /**
+     * Handles the command contained by the current line.
+     */
+    private void handleCommand() {
+        final Command command = Command.of(scanner);
+        final long start = System.nanoTime();
+        try {
+            executeCommand(command);
+        } finally {
+            if (command != null) {
+                metrics.commandHandled(command, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void executeCommand(Command command) {
+        if (command == Command.QUIT) {
+            reply(CLOSING);
+            status = Status.DONE;
+            return;
+        }
+
+        if (command == null) {
+            reply("500-" + status + ", unknown command: " + scanner.toString(StandardCharsets.US_ASCII) + LINE_ENDING);
+            reply(CLOSING);
+            status = Status.DONE;
+            return;
+        }
 
-                switch (status) {
-                    case INITIAL:
-                        client = args[1];
-                        response = "250-" + hostName + " Hello " + client + LINE_ENDING
-                                + "250 AUTH PLAIN" + LINE_ENDING;
-                        status = Status.ENVELOPE;
+        if (!status.getExpected().contains(command)) {
+            reply("500-" + status + ", expected one of " + status.getExpected() + ", but received: " + command + LINE_ENDING);
+            reply(CLOSING);
+            status = Status.DONE;
+            return;
+        }
+
+        if (command == Command.NOOP) {
+            reply(OK);
+            return;
+        }
+        if (command == Command.RSET) {
+            resetTransaction();
+            reply(OK);
+            return;
+        }
+
+        switch (status) {
+            case INITIAL:
+                final String[] args = arguments();
+                client = args.length > 1 ? args[1] : "";
+                reply("250-" + hostName + " Hello " + client + LINE_ENDING
+                        + "250-PIPELINING" + LINE_ENDING
+                        + (maxMessageSize > 0 ? "250-SIZE " + maxMessageSize + LINE_ENDING : "")
+                        + "250 AUTH PLAIN" + LINE_ENDING);
+                status = Status.ENVELOPE;
+                break;
+            case REQUIRE_AUTH:
+                throw new UnsupportedOperationException("Not supported yet");
+            case ENVELOPE:
+                switch (command) {
+                    case MAIL:
+                        final String[] sender = pathAndParameters();
+                        final long declaredSize = sizeParameter(sender[1]);
+                        if (maxMessageSize > 0 && declaredSize > maxMessageSize) {
+                            reply(SIZE_EXCEEDED);
+                        } else {
+                            from = sender[0];
+                            reply(SENDER_OK);
+                        }
+                        break;
+                    case RCPT:
+                        to.add(pathAndParameters()[0]);
+                        reply(RECIPIENT_OK);
                         break;
-                    case REQUIRE_AUTH:
-                        throw new UnsupportedOperationException("Not supported yet");
-                    case ENVELOPE:
-                        switch (command) {
-                            case MAIL:
-                                from = Arrays.stream(args)
-                                        .skip(2)
-                                        .collect(Collectors.joining(" "));
-                                response = "250 Sender OK" + LINE_ENDING;
-                                break;
-                            case RCPT:
-                                to.add(Arrays.stream(args)
-                                        .skip(2)
-                                        .collect(Collectors.joining(" ")));
-                                response = "250 Recipient OK" + LINE_ENDING;
-                                break;
-                            case DATA:
-                                status = Status.HEADERS;
-                                response = "354 Enter mail, end with '.' on a line by itself" + LINE_ENDING;
-                                break;
-                            default:
-                                throw new IllegalArgumentException("Bad command: " + line);
+                    case DATA:
+                        if (from == null) {
+                            reply(BAD_SEQUENCE);
+                            break;
                         }
+                        status = Status.HEADERS;
+                        bodySize = 0;
+                        headerLength = 0;
+                        try {
+                            listener = handler.mailStarted(from, to);
+                        } catch (RuntimeException ex) {
+                            listenerFailed(ex);
+                        }
+                        reply(START_MAIL_INPUT);
                         break;
+                    default:
+                        throw new IllegalArgumentException("Bad command: " + scanner.toString(CHARSET));
                 }
-            } else {
-                if (".".equals(line)) {
-                    status = Status.DONE;
-                    response = "250 Data OK";
-                } else {
-                    dataBuilder.write(line.getBytes(charset));
-                    dataBuilder.write('\r');
-                    dataBuilder.write('\n');
+                break;
+        }
+    }
+
+    private String[] arguments() {
+        return scanner.toString(CHARSET).split("[ :]");
+    }
+
+    /**
+     * Splits the argument of a MAIL or RCPT command.
+     *
+     * @return An array containing the path (like <code>&lt;a@b.c&gt;</code>)
+     * and the parameters following it.
+     */
+    private String[] pathAndParameters() {
+        final String value = Arrays.stream(arguments())
+                .skip(2)
+                .collect(Collectors.joining(" "))
+                .trim();
+        final int end = value.indexOf('>');
+        if (end < 0) {
+            return new String[] {value, ""};
+        }
+        return new String[] {value.substring(0, end + 1), value.substring(end + 1).trim()};
+    }
+
+    /**
+     * Reads the SIZE parameter of a MAIL command.
+     *
+     * @param parameters Parameters following the sender path.
+     * @return The declared size or 0 if absent.
+     */
+    private static long sizeParameter(String parameters) {
+        for (final String parameter : parameters.split(" ")) {
+            if (parameter.regionMatches(true, 0, "SIZE=", 0, 5)) {
+                try {
+                    return Long.parseLong(parameter.substring(5));
+                } catch (NumberFormatException ex) {
+                    return 0;
                 }
             }
-            line = readLine(buffer);
         }
+        return 0;
+    }
+
+    private void endOfData() {
+        if (bodyError != null) {
+            reply(bodyError);
+            resetTransaction();
+        } else {
+            status = Status.DELIVERING;
+            dataEndedAt = System.nanoTime();
+            metrics.messagesReceived.increment();
+            metrics.transactionLatency.record(dataEndedAt - transactionStartedAt);
+        }
+    }
+
+    /**
+     * Appends the current line to the header being received. Folded lines
+     * are joined by removing their line ending only.
+     */
+    private void appendHeader() {
+        final int length = scanner.length();
+        bodySize += scanner.lengthWithEnding();
+        if (maxMessageSize > 0 && bodySize > maxMessageSize && bodyError == null) {
+            bodyError = SIZE_EXCEEDED;
+            abortMail();
+        }
+        if (headerLength + length > maxLineLength) {
+            // Folded lines are limited as a whole.
+            lineTooLong();
+        }
+        if (listener == null) {
+            return;
+        }
+        if (headerLength + length > headerBytes.length) {
+            headerBytes = Arrays.copyOf(headerBytes, Math.max(headerBytes.length * 2, headerLength + length));
+            header = ByteBuffer.wrap(headerBytes);
+        }
+        System.arraycopy(scanner.bytes(), 0, headerBytes, headerLength, length);
+        headerLength += length;
+    }
+
+    private static boolean isContinuation(byte first) {
+        return first == ' ' || first == '\t';
+    }
+
+    /**
+     * Gives the header being received, if any, to the listener.
+     */
+    private void flushHeader() {
+        if (headerLength == 0) {
+            return;
+        }
+        ((Buffer) header).clear();
+        ((Buffer) header).limit(headerLength);
+        headerLength = 0;
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.headerLine(header);
+        } catch (RuntimeException ex) {
+            listenerFailed(ex);
+        }
+    }
+
+    /**
+     * Copies the current line to the body, removing the leading dot added by
+     * the client to lines starting with a dot.
+     */
+    private void writeBodyLine() {
+        if (bodyError != null) {
+            return;
+        }
+        final byte[] bytes = scanner.bytes();
+        final int offset = bytes[0] == '.' && scanner.length() > 1 ? 1 : 0;
+        final int end = scanner.lengthWithEnding();
+        bodySize += end - offset;
+        if (maxMessageSize > 0 && bodySize > maxMessageSize) {
+            bodyError = SIZE_EXCEEDED;
+            abortMail();
+            return;
+        }
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.bodyChunk(currentLine(offset, end));
+        } catch (RuntimeException ex) {
+            listenerFailed(ex);
+        }
+    }
+
+    /**
+     * Reusable view on the current line.
+     *
+     * @param start Index of the first byte.
+     * @param end Index following the last byte.
+     * @return A buffer reading the given range of the current line.
+     */
+    private ByteBuffer currentLine(int start, int end) {
+        final byte[] bytes = scanner.bytes();
+        if (chunk == null || chunk.array() != bytes) {
+            chunk = ByteBuffer.wrap(bytes);
+        }
+        ((Buffer) chunk).clear();
+        ((Buffer) chunk).position(start).limit(end);
+        return chunk;
+    }
+
+    private void listenerFailed(RuntimeException ex) {
+        log.error("Listener failed to process the mail from " + from, ex);
+        bodyError = LOCAL_ERROR;
+        abortMail();
+    }
+
+    /**
+     * Notifies the listener, if any, that the current mail is abandoned.
+     */
+    private void abortMail() {
+        final MailListener current = listener;
+        listener = null;
+        if (current != null) {
+            try {
+                current.mailAborted();
+            } catch (RuntimeException ex) {
+                log.warn("Listener failed to abort the mail from " + from, ex);
+            }
+        }
+        final MailListener dropped = delivering;
+        delivering = null;
+        if (dropped != null) {
+            try {
+                dropped.deliveryDropped();
+            } catch (RuntimeException ex) {
+                log.warn("Listener failed to drop the delivery of the mail from " + from, ex);
+            }
+        }
+    }
+
+    /**
+     * Queues a fixed reply. The shared buffer is duplicated, its content is
+     * not copied.
+     *
+     * @param response Pre-encoded reply.
+     */
+    private void reply(ByteBuffer response) {
+        responses.add(response.duplicate());
+    }
+
+    private void reply(String response) {
+        responses.add(ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static ByteBuffer encode(String response) {
+        return ByteBuffer.wrap((response + LINE_ENDING).getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
     }
 
     public boolean hasResponse() {
-        return response != null;
+        return !responses.isEmpty();
+    }
+
+    /**
+     * Removes and returns the oldest reply waiting to be sent.
+     *
+     * @return The next encoded reply, possibly read-only, or
+     * <code>null</code> if every reply has been sent.
+     */
+    public ByteBuffer pollResponse() {
+        return responses.poll();
+    }
+
+    /**
+     * Indicates if the content of a mail is being received.
+     *
+     * @return <code>true</code> between the DATA command and the end of the
+     * mail.
+     */
+    boolean isReceivingContent() {
+        return status == Status.HEADERS || status == Status.BODY;
     }
 
-    public String getResponse() {
-        final String value = this.response;
-        this.response = null;
-        return value;
+    /**
+     * Time when the DATA of the last mail ended.
+     *
+     * @return A <code>System.nanoTime()</code> value.
+     */
+    long getDataEndedAt() {
+        return dataEndedAt;
     }
 
     public boolean isDone() {
         return status == Status.DONE;
     }
 
-    public Mail build() {
-        String data = dataBuilder.toString();
-        if (QUOTED_PRINTABLE_CONTENT_TRANSFER_ENCODING.equalsIgnoreCase(headers.get(CONTENT_TRANSFER_ENCODING_HEADER))) {
-            Pattern specialChars = Pattern.compile("(?:=[A-Za-z0-9]{2})+");
-            Matcher matcher = specialChars.matcher(data);
-            while (matcher.find()) {
-                final int[] integers = Arrays.stream(matcher.group().substring(1).split("="))
-                        .mapToInt(hex -> Integer.parseInt(hex, 16))
-                        .toArray();
-                final byte[] bytes = new byte[integers.length];
-                for (int index = 0; index < integers.length; index++) {
-                    bytes[index] = (byte)integers[index];
-                }
-                try {
-                    final String decodedValue = charset.newDecoder().decode(ByteBuffer.wrap(bytes)).toString();
-                    data = data.replace(matcher.group(), decodedValue);
-                    matcher = specialChars.matcher(data);
-                } catch (CharacterCodingException ex) {
-                    log.error("Unable to decode bytes " + Arrays.toString(bytes) + " using charset " + charset.displayName(), ex);
-                }
-            }
+    /**
+     * Indicates if the whole mail has been received and is waiting for
+     * delivery.
+     *
+     * @return <code>true</code> if <code>endOfMessage()</code> can be
+     * called.
+     */
+    public boolean isMailComplete() {
+        return status == Status.DELIVERING;
+    }
 
-            specialChars = Pattern.compile("=([A-Za-z0-9]{2})");
-            matcher = specialChars.matcher(data);
-            while (matcher.find()) {
-                data = data.replace(matcher.group(), "" + ((char)Integer.parseInt(matcher.group(1), 16)));
-                matcher = specialChars.matcher(data);
-            }
-            data = data.replace("=\n", "").replace("=\r\n", "");
+    /**
+     * Notifies the listener that the whole mail has been received.
+     *
+     * @return Work to run before acknowledging the mail or <code>null</code>.
+     * @throws RuntimeException If the listener failed.
+     */
+    public Runnable endOfMessage() {
+        final MailListener current = listener;
+        listener = null;
+        if (current == null) {
+            return null;
         }
-        
-        return new Mail(from, to, null, null, headers, data);
+        final Runnable delivery = current.endOfMessage();
+        if (delivery != null) {
+            delivering = current;
+        }
+        return delivery;
     }
 
-    private String readLine(ByteBuffer buffer) {
-        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        while (buffer.hasRemaining()) {
-            char c = (char) buffer.get();
-            if (c != '\r' && c != '\n') {
-                outputStream.write(c);
-            } else if (c == '\n') {
-                return new String(outputStream.toByteArray(), charset);
-            }
+    /**
+     * Aborts the mail being received, if any. Called when the connection is
+     * closed.
+     */
+    public void abort() {
+        abortMail();
+    }
+
+    /**
+     * Acknowledges the received mail and waits for the next one. Its
+     * delivery has been run or queued.
+     */
+    public void mailAccepted() {
+        delivering = null;
+        endTransaction(DATA_OK);
+    }
+
+    /**
+     * Refuses the received mail, its delivery will not be run. The client may
+     * try again later in the same session.
+     */
+    public void mailRejected() {
+        endTransaction(QUEUE_FULL);
+    }
+
+    /**
+     * Refuses the received mail because its listener failed.
+     */
+    public void mailFailed() {
+        endTransaction(LOCAL_ERROR);
+    }
+
+    /**
+     * Answers the received mail. Nothing is sent if the session has been shut
+     * down while the mail was being delivered: its 421 reply is the last one.
+     *
+     * @param response Reply to the content of the mail.
+     */
+    private void endTransaction(ByteBuffer response) {
+        final boolean shutDown = status == Status.DONE;
+        resetTransaction();
+        if (!shutDown) {
+            reply(response);
+            endIfDraining();
+        }
+    }
+
+    /**
+     * Ends the session once no mail is in progress: right away if the client
+     * is between two mails, after the reply to the current mail otherwise.
+     * The client is then sent a 421 reply.
+     */
+    void drain() {
+        draining = true;
+        endIfDraining();
+    }
+
+    /**
+     * Ends the session now with a 421 reply, aborting the current mail.
+     */
+    void shutdown() {
+        if (status != Status.DONE) {
+            abortMail();
+            reply(SHUTTING_DOWN);
+            status = Status.DONE;
+        }
+    }
+
+    /**
+     * Indicates if a mail is in progress.
+     *
+     * @return <code>true</code> from the MAIL command to the reply to the
+     * content of the mail.
+     */
+    boolean isInTransaction() {
+        return from != null || isReceivingContent() || status == Status.DELIVERING;
+    }
+
+    private void endIfDraining() {
+        if (draining && !isInTransaction()) {
+            shutdown();
+        }
+    }
+
+    /**
+     * Forgets the sender, the recipients and the content of the current mail.
+     * Listeners keep their own copy of these values.
+     */
+    private void resetTransaction() {
+        abortMail();
+        transactionStartedAt = System.nanoTime();
+        from = null;
+        to = new ArrayList<>();
+        bodyError = null;
+        if (status != Status.INITIAL && status != Status.DONE) {
+            status = Status.ENVELOPE;
         }
-        return null;
     }
 
     @Getter
     private static enum Status {
-        INITIAL(Command.HELO, Command.EHLO, Command.QUIT),
+        INITIAL(Command.HELO, Command.EHLO, Command.NOOP, Command.RSET, Command.QUIT),
         REQUIRE_AUTH(Command.AUTH, Command.QUIT),
-        ENVELOPE(Command.MAIL, Command.RCPT, Command.DATA, Command.QUIT),
+        ENVELOPE(Command.MAIL, Command.RCPT, Command.DATA, Command.NOOP, Command.RSET, Command.QUIT),
         HEADERS,
         BODY,
+        DELIVERING,
         WAITING_FOR_QUIT(Command.QUIT),
         DONE;
 
@@ -212,7 +658,7 @@ public class MailBuilder {
         }
     }
 
-    private static enum Command {
+    static enum Command {
         // Start with: 220 hostname SMTP Ready OR 220 hostname ESMTP Ready
 
         // If sent "SMTP Ready", waiting for HELO
@@ -246,8 +692,35 @@ public class MailBuilder {
         // .
         // 250 Ok
 
+        RSET,
+        // 250 OK
+
+        NOOP,
+        // 250 OK
+
         QUIT
         // 221 Closing connection
         ;
+
+        private static final Command[] VALUES = values();
+
+        private final byte[] keyword = name().getBytes(StandardCharsets.US_ASCII);
+
+        /**
+         * Finds the command starting the current line of the given scanner.
+         *
+         * @param scanner Scanner positioned on a command line.
+         * @return The matching command or <code>null</code> if unknown.
+         */
+        static Command of(LineScanner scanner) {
+            for (final Command command : VALUES) {
+                final int length = command.keyword.length;
+                if (scanner.startsWithIgnoreCase(command.keyword)
+                        && (scanner.length() == length || scanner.bytes()[length] == ' ')) {
+                    return command;
+                }
+            }
+            return null;
+        }
     }
 }
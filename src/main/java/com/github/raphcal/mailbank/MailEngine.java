@@ -0,0 +1,140 @@
+package com.github.raphcal.mailbank;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Threads, selectors and buffers shared by several <code>MailBank</code>.
+ * <p>
+ * Each <code>MailBank</code> created with an engine listens on its own port
+ * with its own handler, mailbox, limits and metrics, but no thread is
+ * started for it: starting and stopping such a <code>MailBank</code> only
+ * opens and closes its port. Tests needing many isolated servers can then
+ * create one per test on an ephemeral port.
+ * <p>
+ * Only <code>transport</code>, <code>workerCount</code>,
+ * <code>workerSelection</code> and the buffer options of the engine
+ * configuration are used. Timeouts of the engine configuration set the
+ * precision of the timeouts of every <code>MailBank</code>.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class MailEngine implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailEngine.class);
+    private static final AtomicInteger ENGINE_COUNT = new AtomicInteger();
+
+    private final MailBankConfiguration configuration;
+    private final Server server;
+    private final Thread serverThread;
+    private final Object runningLock = new Object();
+    private final Semaphore startSemaphore = new Semaphore(0);
+    private volatile boolean closed;
+
+    public MailEngine() {
+        this(MailBankConfiguration.defaults());
+    }
+
+    public MailEngine(MailBankConfiguration configuration) {
+        this.configuration = configuration;
+        this.server = new Server(configuration, runningLock, startSemaphore);
+        this.serverThread = new Thread(server, "mailbank-engine-" + ENGINE_COUNT.incrementAndGet());
+    }
+
+    /**
+     * Starts the threads of this engine. Called by the first
+     * <code>MailBank</code> started if needed.
+     */
+    public synchronized void start() {
+        if (serverThread.getState() != Thread.State.NEW) {
+            return;
+        }
+        serverThread.start();
+        startSemaphore.acquireUninterruptibly();
+        if (!server.isReady()) {
+            throw new IllegalStateException("Unable to start the mail engine, see logs for details.");
+        }
+    }
+
+    /**
+     * Stops the threads of this engine and closes the ports and connections
+     * of every <code>MailBank</code> still using it.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (serverThread.isAlive()) {
+            serverThread.interrupt();
+            synchronized (runningLock) {
+                LOGGER.debug("Mail engine " + serverThread.getName() + " stopped.");
+            }
+        }
+    }
+
+    /**
+     * Indicates if this engine is started and not yet closed.
+     *
+     * @return <code>true</code> if listeners can be added.
+     */
+    public boolean isRunning() {
+        return !closed && server.isRunning();
+    }
+
+    MailBankConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    BufferPool getBufferPool() {
+        return server.getBufferPool();
+    }
+
+    /**
+     * Opens the port of the given listener and starts accepting its
+     * connections.
+     *
+     * @param listener Listener to add.
+     * @param port Port to listen to, 0 for an ephemeral port.
+     * @param nextFreePort <code>true</code> to try the following ports while
+     * the given one is taken.
+     * @throws IOException If the port can't be opened.
+     */
+    void addListener(Listener listener, int port, boolean nextFreePort) throws IOException {
+        start();
+        if (!isRunning()) {
+            throw new IllegalStateException("Mail engine is closed.");
+        }
+        server.addListener(listener, port, nextFreePort);
+    }
+
+    /**
+     * Closes the port and the connections of the given listener.
+     *
+     * @param listener Listener to remove.
+     */
+    void removeListener(Listener listener) {
+        server.removeListener(listener);
+    }
+
+    /**
+     * Closes the port of the given listener and ends its connections once
+     * their current mail has been answered.
+     *
+     * @param listener Listener to drain.
+     */
+    void drainListener(Listener listener) {
+        server.drainListener(listener);
+    }
+
+    /**
+     * Ends the connections of the given listener now, with a 421 reply.
+     *
+     * @param listener Drained listener.
+     */
+    void shutdownListener(Listener listener) {
+        server.shutdownListener(listener);
+    }
+}
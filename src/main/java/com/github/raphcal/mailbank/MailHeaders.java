@@ -0,0 +1,412 @@
+package com.github.raphcal.mailbank;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Header fields of a mail, in the order they were received.
+ * <p>
+ * Names are case-insensitive and a name may have several values, like
+ * <code>Received</code>. As a <code>Map</code>, each name is seen once with
+ * its first value: use <code>getAll</code> or the field accessors to read
+ * every value.
+ * <p>
+ * Names of the common header fields are interned: the same
+ * <code>String</code> instance is shared by every mail.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class MailHeaders extends AbstractMap<String, String> {
+
+    private static final String[] KNOWN_NAMES = {
+        "Bcc", "Cc", "Content-Description", "Content-Disposition", "Content-ID",
+        "Content-Language", "Content-Transfer-Encoding", "Content-Type", "Date",
+        "Delivered-To", "DKIM-Signature", "From", "In-Reply-To", "List-Id",
+        "List-Unsubscribe", "Message-ID", "MIME-Version", "Precedence",
+        "Received", "Received-SPF", "References", "Reply-To", "Return-Path",
+        "Sender", "Subject", "To", "User-Agent", "X-Mailer", "X-Priority",
+        "Authentication-Results", "ARC-Authentication-Results",
+        "ARC-Message-Signature", "ARC-Seal", "Importance", "Thread-Index",
+        "Thread-Topic", "Auto-Submitted", "Errors-To", "Organization"
+    };
+    private static final String[] INTERNED = new String[128];
+
+    static {
+        for (final String name : KNOWN_NAMES) {
+            int slot = hash(name) & (INTERNED.length - 1);
+            while (INTERNED[slot] != null) {
+                slot = (slot + 1) & (INTERNED.length - 1);
+            }
+            INTERNED[slot] = name;
+        }
+    }
+
+    private String[] names;
+    private String[] values;
+    private int fieldCount;
+
+    public MailHeaders() {
+        this(16);
+    }
+
+    public MailHeaders(int initialCapacity) {
+        names = new String[Math.max(initialCapacity, 1)];
+        values = new String[names.length];
+    }
+
+    /**
+     * Returns the given headers as a <code>MailHeaders</code>.
+     *
+     * @param headers Headers to copy, may be <code>null</code>.
+     * @return The given instance if it is already a <code>MailHeaders</code>,
+     * a copy otherwise.
+     */
+    public static MailHeaders copyOf(Map<String, String> headers) {
+        if (headers instanceof MailHeaders) {
+            return (MailHeaders) headers;
+        }
+        final MailHeaders copy = new MailHeaders(headers != null ? headers.size() : 0);
+        if (headers != null) {
+            for (final Map.Entry<String, String> header : headers.entrySet()) {
+                copy.add(header.getKey(), header.getValue());
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Adds a field after every other, keeping the existing values of the
+     * same name.
+     *
+     * @param name Name of the field.
+     * @param value Value of the field.
+     */
+    public void add(String name, String value) {
+        if (fieldCount == names.length) {
+            names = Arrays.copyOf(names, fieldCount * 2);
+            values = Arrays.copyOf(values, fieldCount * 2);
+        }
+        names[fieldCount] = intern(name);
+        values[fieldCount] = value;
+        fieldCount++;
+    }
+
+    /**
+     * Returns the first value of the given field.
+     *
+     * @param name Name of the field, case is ignored.
+     * @return The first value or <code>null</code> if the mail has no such
+     * field.
+     */
+    @Override
+    public String get(Object name) {
+        final int index = indexOf(name, 0);
+        return index >= 0 ? values[index] : null;
+    }
+
+    /**
+     * Returns every value of the given field, in order.
+     *
+     * @param name Name of the field, case is ignored.
+     * @return The values, an empty list if the mail has no such field.
+     */
+    public List<String> getAll(String name) {
+        int index = indexOf(name, 0);
+        if (index < 0) {
+            return Collections.emptyList();
+        }
+        final List<String> all = new ArrayList<>(2);
+        while (index >= 0) {
+            all.add(values[index]);
+            index = indexOf(name, index + 1);
+        }
+        return all;
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return indexOf(name, 0) >= 0;
+    }
+
+    /**
+     * Replaces every value of the given field by the given value.
+     *
+     * @return The previous first value or <code>null</code>.
+     */
+    @Override
+    public String put(String name, String value) {
+        final int index = indexOf(name, 0);
+        if (index < 0) {
+            add(name, value);
+            return null;
+        }
+        final String previous = values[index];
+        values[index] = value;
+        removeFrom(name, index + 1);
+        return previous;
+    }
+
+    /**
+     * Removes every value of the given field.
+     *
+     * @return The previous first value or <code>null</code>.
+     */
+    @Override
+    public String remove(Object name) {
+        final int index = indexOf(name, 0);
+        if (index < 0) {
+            return null;
+        }
+        final String previous = values[index];
+        removeFrom(name, index);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(names, 0, fieldCount, null);
+        Arrays.fill(values, 0, fieldCount, null);
+        fieldCount = 0;
+    }
+
+    /**
+     * Number of fields, counting every value of repeated fields.
+     *
+     * @return The number of fields.
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    public String getName(int index) {
+        checkIndex(index);
+        return names[index];
+    }
+
+    public String getValue(int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new FirstValueIterator();
+            }
+
+            @Override
+            public int size() {
+                int size = 0;
+                for (int index = 0; index < fieldCount; index++) {
+                    if (isFirst(index)) {
+                        size++;
+                    }
+                }
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Parses a header line and adds its field.
+     *
+     * @param line Unfolded line, without line ending.
+     */
+    void addLine(ByteBuffer line) {
+        final int colon = indexOfColon(line);
+        add(name(line, colon), value(line, colon));
+    }
+
+    /**
+     * Index of the colon separating the name of a header line from its value.
+     *
+     * @param line Header line.
+     * @return An absolute index in the buffer, the limit if the line has no
+     * colon.
+     */
+    static int indexOfColon(ByteBuffer line) {
+        final int limit = line.limit();
+        for (int index = line.position(); index < limit; index++) {
+            if (line.get(index) == ':') {
+                return index;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Reads the name of a header line. Names of common fields are shared.
+     *
+     * @param line Header line.
+     * @param colon Index returned by <code>indexOfColon</code>.
+     * @return The name, without trailing spaces.
+     */
+    static String name(ByteBuffer line, int colon) {
+        final int start = line.position();
+        int end = colon;
+        while (end > start && isSpace(line.get(end - 1))) {
+            end--;
+        }
+        final int length = end - start;
+        int hash = 0;
+        for (int index = start; index < end; index++) {
+            hash = 31 * hash + toLowerCase(line.get(index));
+        }
+        int slot = hash & (INTERNED.length - 1);
+        for (String known; (known = INTERNED[slot]) != null; slot = (slot + 1) & (INTERNED.length - 1)) {
+            if (known.length() == length && matches(line, start, known)) {
+                return known;
+            }
+        }
+        final byte[] bytes = new byte[length];
+        for (int index = 0; index < length; index++) {
+            bytes[index] = line.get(start + index);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Reads the value of a header line, without the spaces around it. Folded
+     * lines must have been joined, their leading spaces are kept.
+     *
+     * @param line Header line.
+     * @param colon Index returned by <code>indexOfColon</code>.
+     * @return The value, decoded as UTF-8.
+     */
+    static String value(ByteBuffer line, int colon) {
+        int start = Math.min(colon + 1, line.limit());
+        int end = line.limit();
+        while (start < end && isSpace(line.get(start))) {
+            start++;
+        }
+        while (end > start && isSpace(line.get(end - 1))) {
+            end--;
+        }
+        if (line.hasArray()) {
+            return new String(line.array(), line.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+        }
+        final ByteBuffer value = line.duplicate();
+        value.limit(end).position(start);
+        return StandardCharsets.UTF_8.decode(value).toString();
+    }
+
+    private int indexOf(Object name, int from) {
+        if (!(name instanceof String)) {
+            return -1;
+        }
+        final String key = (String) name;
+        for (int index = from; index < fieldCount; index++) {
+            final String candidate = names[index];
+            if (candidate == key || candidate.equalsIgnoreCase(key)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isFirst(int index) {
+        return indexOf(names[index], 0) == index;
+    }
+
+    private void removeFrom(Object name, int from) {
+        int kept = from;
+        for (int index = from; index < fieldCount; index++) {
+            if (!names[index].equalsIgnoreCase((String) name)) {
+                names[kept] = names[index];
+                values[kept] = values[index];
+                kept++;
+            }
+        }
+        Arrays.fill(names, kept, fieldCount, null);
+        Arrays.fill(values, kept, fieldCount, null);
+        fieldCount = kept;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= fieldCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", field count: " + fieldCount);
+        }
+    }
+
+    private static String intern(String name) {
+        int slot = hash(name) & (INTERNED.length - 1);
+        for (String known; (known = INTERNED[slot]) != null; slot = (slot + 1) & (INTERNED.length - 1)) {
+            if (known.equalsIgnoreCase(name)) {
+                return known;
+            }
+        }
+        return name;
+    }
+
+    private static int hash(String name) {
+        int hash = 0;
+        for (int index = 0; index < name.length(); index++) {
+            hash = 31 * hash + toLowerCase(name.charAt(index));
+        }
+        return hash;
+    }
+
+    private static boolean matches(ByteBuffer line, int start, String known) {
+        for (int index = 0; index < known.length(); index++) {
+            if (toLowerCase(line.get(start + index)) != toLowerCase(known.charAt(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * Iterates over the first field of each name.
+     */
+    private class FirstValueIterator implements Iterator<Map.Entry<String, String>> {
+        private int next = 0;
+        private int current = -1;
+
+        @Override
+        public boolean hasNext() {
+            while (next < fieldCount && !isFirst(next)) {
+                next++;
+            }
+            return next < fieldCount;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = next++;
+            return new AbstractMap.SimpleImmutableEntry<>(names[current], values[current]);
+        }
+
+        @Override
+        public void remove() {
+            if (current < 0) {
+                throw new IllegalStateException();
+            }
+            MailHeaders.this.remove(names[current]);
+            next = current;
+            current = -1;
+        }
+    }
+}
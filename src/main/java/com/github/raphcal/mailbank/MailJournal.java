@@ -0,0 +1,610 @@
+package com.github.raphcal.mailbank;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only journal of received mails, stored in memory-mapped segment
+ * files.
+ * <p>
+ * Each record contains the envelope, the header lines and the raw body of a
+ * mail. <code>append</code> returns once the record has been forced to disk.
+ * A single sync thread forces the segments: appends made while it is syncing
+ * are committed together by its next sync.
+ * <p>
+ * Appending blocks the calling thread until the sync: a server using a
+ * journal has to be given a <code>handlerExecutor</code>, otherwise its
+ * selector thread would wait for the disk on every mail and stop serving
+ * the other connections meanwhile. <code>MailBank</code> refuses such a
+ * configuration.
+ * <p>
+ * The segments are scanned when the journal is opened to index their
+ * records. Replayed mails are <code>LazyMail</code> whose body is read from
+ * the mapped segments, so only their headers are copied on the heap.
+ * <p>
+ * With a retention set by <code>setRetention</code>, the oldest segments are
+ * deleted once every record they contain is over the limits.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@Slf4j
+public class MailJournal implements SmtpHandler, Closeable {
+    private static final String SEGMENT_PREFIX = "mailbank-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    /**
+     * Length and CRC of the payload.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+    /**
+     * Zero length written after the last record.
+     */
+    private static final int END_MARKER_SIZE = 4;
+    private static final int NULL_STRING = -1;
+    /**
+     * Position of the receive time in a record.
+     */
+    private static final int RECEIVED_AT_OFFSET = RECORD_HEADER_SIZE;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long syncDelayNanos;
+
+    private final Object lock = new Object();
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    /**
+     * Number of the first segment of <code>segments</code>, the older ones
+     * have been deleted.
+     */
+    private int firstSegment;
+    /**
+     * Segment number (high 32 bits) and position (low 32 bits) of each
+     * record.
+     */
+    private long[] index = new long[1024];
+    private int recordCount;
+
+    private MappedByteBuffer current;
+    private int writePosition;
+    private final List<MappedByteBuffer> unsynced = new ArrayList<>();
+    private long appended;
+    private long synced;
+    private boolean closed;
+    /**
+     * Set when the sync thread ended, after its last sync.
+     */
+    private boolean syncStopped;
+
+    // Retention limits, 0 means no limit.
+    private int maxRecords;
+    private long maxAgeMillis;
+
+    private final Thread syncThread;
+
+    private MailJournal(Path directory, int segmentSize, long syncDelayNanos) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncDelayNanos = syncDelayNanos;
+        this.syncThread = new Thread(this::syncLoop, "mailbank-journal-sync");
+        this.syncThread.setDaemon(true);
+    }
+
+    /**
+     * Opens or creates a journal with 64 MB segments, synced as soon as
+     * possible.
+     *
+     * @param directory Directory of the segment files.
+     * @return The opened journal.
+     * @throws IOException If the segments can't be read or created.
+     */
+    public static MailJournal open(Path directory) throws IOException {
+        return open(directory, 64 * 1024 * 1024, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens or creates a journal.
+     *
+     * @param directory Directory of the segment files.
+     * @param segmentSize Size in bytes of each segment file. Larger mails
+     * get a segment of their own.
+     * @param syncDelay Time waited by the sync thread after an append to
+     * commit more records with the same sync.
+     * @param unit Unit of <code>syncDelay</code>.
+     * @return The opened journal.
+     * @throws IOException If the segments can't be read or created.
+     */
+    public static MailJournal open(Path directory, int segmentSize, long syncDelay, TimeUnit unit) throws IOException {
+        Files.createDirectories(directory);
+        final MailJournal journal = new MailJournal(directory, segmentSize, unit.toNanos(syncDelay));
+        journal.load();
+        journal.syncThread.start();
+        return journal;
+    }
+
+    /**
+     * Appends the given mail, see <code>append</code>.
+     *
+     * @param mail Received mail.
+     * @throws UncheckedIOException If the mail can't be written.
+     */
+    @Override
+    public void mailReceived(Mail mail) {
+        try {
+            append(mail);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Appends the given mail to the journal and waits until it is on disk.
+     * The calling thread is blocked meanwhile, see the class description.
+     *
+     * @param mail Mail to append.
+     * @throws IOException If the mail can't be written or if the journal is
+     * closed.
+     */
+    public void append(Mail mail) throws IOException {
+        final byte[] from = encode(mail.getFrom());
+        final List<String> to = mail.getTo() != null ? mail.getTo() : Collections.<String>emptyList();
+        final byte[][] recipients = new byte[to.size()][];
+        int payloadSize = 8 + 4 + (from != null ? from.length : 0) + 4;
+        for (int i = 0; i < recipients.length; i++) {
+            recipients[i] = encode(to.get(i));
+            payloadSize += 4 + recipients[i].length;
+        }
+
+        // Every value of repeated fields is kept.
+        final MailHeaders headers = MailHeaders.copyOf(mail.getHeaders());
+        final byte[][] headerLines = new byte[headers.getFieldCount()][];
+        payloadSize += 4;
+        for (int headerIndex = 0; headerIndex < headerLines.length; headerIndex++) {
+            headerLines[headerIndex] = (headers.getName(headerIndex) + ": " + headers.getValue(headerIndex)).getBytes(StandardCharsets.UTF_8);
+            payloadSize += 4 + headerLines[headerIndex].length;
+        }
+
+        final MailBody body = mail.getBody();
+        final long bodySize = body != null ? body.getSize() : 0;
+        if (bodySize > Integer.MAX_VALUE - payloadSize - RECORD_HEADER_SIZE - END_MARKER_SIZE - 4) {
+            throw new IOException("Mail body is too large for the journal: " + bodySize + " bytes");
+        }
+        payloadSize += 4 + (int) bodySize;
+
+        final long sequence;
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("Journal is closed");
+            }
+            reserve(RECORD_HEADER_SIZE + payloadSize + END_MARKER_SIZE);
+            final int start = writePosition;
+            final ByteBuffer record = current.duplicate();
+            record.position(start + RECEIVED_AT_OFFSET);
+            record.putLong(System.currentTimeMillis());
+            putBytes(record, from);
+            record.putInt(recipients.length);
+            for (final byte[] recipient : recipients) {
+                putBytes(record, recipient);
+            }
+            record.putInt(headerLines.length);
+            for (final byte[] line : headerLines) {
+                putBytes(record, line);
+            }
+            record.putInt((int) bodySize);
+            if (body != null) {
+                putBody(record, body);
+            }
+            final int end = record.position();
+            record.putInt(0);
+
+            final ByteBuffer payload = current.duplicate();
+            payload.position(start + RECORD_HEADER_SIZE).limit(end);
+            final CRC32 crc = new CRC32();
+            crc.update(payload);
+            current.putInt(start + 4, (int) crc.getValue());
+            // The length is written last: a record without length is ignored
+            // when the segment is scanned.
+            current.putInt(start, payloadSize);
+
+            writePosition = end;
+            addToIndex(firstSegment + segments.size() - 1, start);
+            sequence = ++appended;
+            lock.notifyAll();
+
+            try {
+                // Appends still waiting when the journal is closed are
+                // committed by the last sync.
+                while (synced < sequence && !syncStopped) {
+                    lock.wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the journal sync");
+            }
+            if (synced < sequence) {
+                throw new IOException("Journal has been closed before the mail was synced");
+            }
+        }
+    }
+
+    /**
+     * Number of mails in the journal.
+     *
+     * @return The number of records.
+     */
+    public int size() {
+        synchronized (lock) {
+            return recordCount;
+        }
+    }
+
+    /**
+     * Gives every mail of the journal to the given handler, from the oldest
+     * to the newest.
+     *
+     * @param handler Handler receiving the mails.
+     */
+    public void replay(SmtpHandler handler) {
+        final long[] records;
+        final List<MappedByteBuffer> mappedSegments;
+        final int first;
+        synchronized (lock) {
+            records = Arrays.copyOf(index, recordCount);
+            mappedSegments = new ArrayList<>(segments);
+            first = firstSegment;
+        }
+        for (final long record : records) {
+            handler.mailReceived(read(mappedSegments.get((int) (record >>> 32) - first), (int) record));
+        }
+    }
+
+    /**
+     * Stores the mails of the journal in the given mailbox, from the oldest
+     * to the newest. The mails the mailbox would evict, because there are
+     * too many of them or because they are too old, are skipped. The age of
+     * the replayed mails is counted from the time they were appended.
+     *
+     * @param mailbox Mailbox receiving the mails.
+     */
+    public void replay(Mailbox mailbox) {
+        final long[] records;
+        final List<MappedByteBuffer> mappedSegments;
+        final int first;
+        synchronized (lock) {
+            records = Arrays.copyOf(index, recordCount);
+            mappedSegments = new ArrayList<>(segments);
+            first = firstSegment;
+        }
+        final int maxSize = mailbox.getMaxSize();
+        final long maxAge = mailbox.getMaxAgeMillis();
+        final long expiration = System.currentTimeMillis() - maxAge;
+        for (int record = maxSize > 0 ? Math.max(0, records.length - maxSize) : 0; record < records.length; record++) {
+            final ByteBuffer segment = mappedSegments.get((int) (records[record] >>> 32) - first);
+            final int position = (int) records[record];
+            final long receivedAt = segment.getLong(position + RECEIVED_AT_OFFSET);
+            if (maxAge <= 0 || receivedAt >= expiration) {
+                mailbox.mailReceived(read(segment, position), receivedAt);
+            }
+        }
+    }
+
+    /**
+     * Sets the retention of the journal and deletes the segments over it
+     * right away. The limits are checked again each time a segment is
+     * full: a segment is deleted once all its records are too old or
+     * followed by at least <code>maxRecords</code> newer records. The
+     * segment being written is never deleted.
+     * <p>
+     * Mails already replayed from deleted segments stay readable on systems
+     * allowing to delete a mapped file.
+     *
+     * @param maxRecords Number of records to keep, 0 means no limit.
+     * @param maxAge Age of the records to keep, 0 means no limit.
+     * @param unit Unit of <code>maxAge</code>.
+     */
+    public void setRetention(int maxRecords, long maxAge, TimeUnit unit) {
+        synchronized (lock) {
+            this.maxRecords = maxRecords;
+            this.maxAgeMillis = unit.toMillis(maxAge);
+            deleteExpiredSegments();
+        }
+    }
+
+    /**
+     * Stops the sync thread after a last sync. Mails replayed from this
+     * journal stay readable.
+     *
+     * @throws IOException If the sync thread has been interrupted.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            syncThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the journal");
+        }
+    }
+
+    /**
+     * Maps the existing segments and indexes their records.
+     */
+    private void load() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (final Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        if (!files.isEmpty()) {
+            // Segments are numbered in sequence from the oldest one kept.
+            final String name = files.get(0).getFileName().toString();
+            firstSegment = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+
+        for (int segment = 0; segment < files.size(); segment++) {
+            final boolean last = segment == files.size() - 1;
+            final MappedByteBuffer buffer = map(files.get(segment), Files.size(files.get(segment)), last);
+            segments.add(buffer);
+            int position = 0;
+            while (position + RECORD_HEADER_SIZE <= buffer.limit()) {
+                final int length = buffer.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length > buffer.limit()) {
+                    break;
+                }
+                final ByteBuffer payload = buffer.duplicate();
+                payload.position(position + RECORD_HEADER_SIZE).limit(position + RECORD_HEADER_SIZE + length);
+                final CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    log.warn("Corrupted record in " + files.get(segment) + " at " + position + ", ignoring the end of the segment");
+                    break;
+                }
+                addToIndex(firstSegment + segment, position);
+                position += RECORD_HEADER_SIZE + length;
+            }
+            if (last) {
+                current = buffer;
+                writePosition = position;
+            }
+        }
+        if (current == null) {
+            newSegment(segmentSize);
+        }
+    }
+
+    /**
+     * Starts a new segment if the current one can't hold the given number of
+     * bytes. Must be called while holding <code>lock</code>.
+     */
+    private void reserve(int size) throws IOException {
+        if (writePosition + size > current.capacity()) {
+            unsynced.add(current);
+            newSegment(Math.max(segmentSize, size));
+            deleteExpiredSegments();
+        }
+    }
+
+    private void newSegment(int size) throws IOException {
+        current = map(segmentFile(firstSegment + segments.size()), size, true);
+        segments.add(current);
+        writePosition = 0;
+    }
+
+    private Path segmentFile(int segment) {
+        return directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Deletes the oldest segments whose records are all over the retention
+     * limits. Segments not synced yet are kept. Must be called while holding
+     * <code>lock</code>.
+     */
+    private void deleteExpiredSegments() {
+        if (maxRecords <= 0 && maxAgeMillis <= 0) {
+            return;
+        }
+        final long expiration = System.currentTimeMillis() - maxAgeMillis;
+        int deletedRecords = 0;
+        int deletedSegments = 0;
+        while (deletedSegments < segments.size() - 1 && !unsynced.contains(segments.get(deletedSegments))) {
+            final int segment = firstSegment + deletedSegments;
+            // Records are indexed in order: the ones of this segment follow
+            // the ones of the segments already deleted.
+            int end = deletedRecords;
+            while (end < recordCount && (int) (index[end] >>> 32) == segment) {
+                end++;
+            }
+            final boolean tooMany = maxRecords > 0 && recordCount - end >= maxRecords;
+            final boolean tooOld = maxAgeMillis > 0 && end > deletedRecords
+                    && segments.get(deletedSegments).getLong((int) index[end - 1] + RECEIVED_AT_OFFSET) < expiration;
+            if (!tooMany && !tooOld) {
+                break;
+            }
+            deletedRecords = end;
+            deletedSegments++;
+        }
+        if (deletedSegments == 0) {
+            return;
+        }
+        for (int segment = 0; segment < deletedSegments; segment++) {
+            final Path file = segmentFile(firstSegment + segment);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                log.warn("Unable to delete journal segment " + file, ex);
+            }
+        }
+        segments.subList(0, deletedSegments).clear();
+        firstSegment += deletedSegments;
+        System.arraycopy(index, deletedRecords, index, 0, recordCount - deletedRecords);
+        recordCount -= deletedRecords;
+    }
+
+    private static MappedByteBuffer map(Path file, long size, boolean writable) throws IOException {
+        if (writable) {
+            try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    private void addToIndex(int segment, int position) {
+        if (recordCount == index.length) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+        index[recordCount++] = (long) segment << 32 | position;
+    }
+
+    /**
+     * Forces the written records to disk, as long as the journal is open.
+     */
+    private void syncLoop() {
+        try {
+            syncUntilClosed();
+        } finally {
+            synchronized (lock) {
+                syncStopped = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void syncUntilClosed() {
+        while (true) {
+            final long target;
+            final List<MappedByteBuffer> toSync;
+            final boolean closing;
+            try {
+                synchronized (lock) {
+                    while (appended == synced && !closed) {
+                        lock.wait();
+                    }
+                }
+                if (syncDelayNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(syncDelayNanos);
+                }
+            } catch (InterruptedException ex) {
+                log.warn("Journal sync thread interrupted");
+            }
+            synchronized (lock) {
+                target = appended;
+                toSync = new ArrayList<>(unsynced);
+                toSync.add(current);
+                unsynced.clear();
+                closing = closed;
+            }
+            for (final MappedByteBuffer segment : toSync) {
+                segment.force();
+            }
+            synchronized (lock) {
+                synced = target;
+                lock.notifyAll();
+                if (closing && appended == synced) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static LazyMail read(ByteBuffer segment, int position) {
+        final ByteBuffer record = segment.duplicate();
+        record.position(position + RECEIVED_AT_OFFSET + 8);
+        final String from = getString(record);
+        final List<String> to = new ArrayList<>();
+        for (int count = record.getInt(); count > 0; count--) {
+            to.add(getString(record));
+        }
+
+        final int headerCount = record.getInt();
+        final int headerStart = record.position();
+        int headerBytesSize = 0;
+        for (int header = 0; header < headerCount; header++) {
+            final int length = record.getInt();
+            headerBytesSize += length;
+            record.position(record.position() + length);
+        }
+        final byte[] headerBytes = new byte[headerBytesSize];
+        final int[] headerOffsets = new int[headerCount * 2];
+        record.position(headerStart);
+        int offset = 0;
+        for (int header = 0; header < headerCount; header++) {
+            final int length = record.getInt();
+            record.get(headerBytes, offset, length);
+            headerOffsets[header * 2] = offset;
+            headerOffsets[header * 2 + 1] = offset + length;
+            offset += length;
+        }
+
+        final int bodySize = record.getInt();
+        record.limit(record.position() + bodySize);
+        return new LazyMail(from, to, headerBytes, headerOffsets, headerCount, MailBody.mapped(record.slice()), true);
+    }
+
+    private static void putBody(ByteBuffer record, MailBody body) throws IOException {
+        if (body.isInMemory()) {
+            record.put(body.bytes());
+        } else if (body.getFile() != null) {
+            final ByteBuffer target = record.duplicate();
+            target.limit(target.position() + (int) body.getSize());
+            try (final FileChannel channel = FileChannel.open(body.getFile(), StandardOpenOption.READ)) {
+                while (target.hasRemaining() && channel.read(target) >= 0) {
+                    // Reads until the body is copied.
+                }
+            }
+            record.position(target.position());
+        } else {
+            record.put(body.asByteBuffer());
+        }
+    }
+
+    private static byte[] encode(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(NULL_STRING);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length == NULL_STRING) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.raphcal.mailbank;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the content of one mail, in order: every header, every body chunk
+ * and then either the end of the message or its abortion.
+ * <p>
+ * If a callback throws an exception, the mail is refused with a 451 reply
+ * and the following callbacks are not made.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public interface MailListener {
+    /**
+     * Called for each raw header line. The default implementation splits the
+     * line and calls <code>header(name, value)</code>.
+     *
+     * @param line Bytes of the line, without line ending. Folded lines are
+     * joined: the line contains the whole field. The buffer is reused after
+     * this call and must not be modified.
+     */
+    default void headerLine(ByteBuffer line) {
+        final int colon = MailHeaders.indexOfColon(line);
+        header(MailHeaders.name(line, colon), MailHeaders.value(line, colon));
+    }
+
+    /**
+     * Called for each header line.
+     *
+     * @param name Name of the header.
+     * @param value Value of the header.
+     */
+    void header(String name, String value);
+
+    /**
+     * Called for each part of the body, as sent by the client (still
+     * transfer encoded, lines ending with CRLF).
+     *
+     * @param chunk Bytes of the body. The buffer is reused after this call
+     * and must not be modified.
+     */
+    void bodyChunk(ByteBuffer chunk);
+
+    /**
+     * Called when the whole mail has been received.
+     *
+     * @return Work to run on the handler executor before acknowledging the
+     * mail, or <code>null</code> if the mail can be acknowledged right away.
+     */
+    Runnable endOfMessage();
+
+    /**
+     * Called instead of <code>endOfMessage()</code> when the mail is
+     * abandoned: reset by the client, too large or connection closed.
+     */
+    default void mailAborted() {
+    }
+
+    /**
+     * Called when the work returned by <code>endOfMessage()</code> will not
+     * be run: the handler queue was full or the session has been shut down
+     * before the mail could be queued. The mail is refused.
+     */
+    default void deliveryDropped() {
+    }
+}
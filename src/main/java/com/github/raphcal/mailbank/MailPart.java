@@ -0,0 +1,136 @@
+package com.github.raphcal.mailbank;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import lombok.Getter;
+
+/**
+ * Part of a multipart mail, like a text alternative or an attachment.
+ * <p>
+ * A part is a range of the raw body of its mail: its content is neither
+ * copied nor decoded until it is read.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class MailPart {
+    private static final String CONTENT_DISPOSITION_HEADER = "Content-Disposition";
+    private static final String DEFAULT_CONTENT_TYPE = "text/plain";
+
+    @Getter
+    private final MailHeaders headers;
+    private final MailBody body;
+    private final long offset;
+    /**
+     * Size of the raw content of this part, still transfer encoded.
+     */
+    @Getter
+    private final long size;
+
+    MailPart(MailHeaders headers, MailBody body, long offset, long size) {
+        this.headers = headers;
+        this.body = body;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    /**
+     * Media type of this part, with its parameters.
+     *
+     * @return The value of the Content-Type header, <code>text/plain</code>
+     * if absent.
+     */
+    public String getContentType() {
+        final String contentType = headers.get(ContentDecoder.CONTENT_TYPE_HEADER);
+        return contentType != null ? contentType : DEFAULT_CONTENT_TYPE;
+    }
+
+    /**
+     * Name of the attached file.
+     *
+     * @return The filename parameter of the Content-Disposition header or
+     * the name parameter of the Content-Type header, <code>null</code> if
+     * both are absent.
+     */
+    public String getFileName() {
+        final String fileName = ContentDecoder.parameter(headers.get(CONTENT_DISPOSITION_HEADER), "filename=");
+        return fileName != null ? fileName : ContentDecoder.parameter(headers.get(ContentDecoder.CONTENT_TYPE_HEADER), "name=");
+    }
+
+    /**
+     * Indicates if this part is an attachment rather than a part of the
+     * message text.
+     *
+     * @return <code>true</code> if the part is disposed as an attachment or
+     * has a file name.
+     */
+    public boolean isAttachment() {
+        final String disposition = headers.get(CONTENT_DISPOSITION_HEADER);
+        return disposition != null && disposition.regionMatches(true, 0, "attachment", 0, 10)
+                || getFileName() != null;
+    }
+
+    /**
+     * Opens a stream decoding the content of this part while it is read.
+     *
+     * @return A new stream.
+     * @throws IOException If the body of the mail can't be read.
+     */
+    public InputStream openStream() throws IOException {
+        return ContentDecoder.decodingStream(openRawStream(),
+                headers.get(ContentDecoder.CONTENT_TRANSFER_ENCODING_HEADER));
+    }
+
+    /**
+     * Opens a stream reading the content of this part as sent, still
+     * transfer encoded.
+     *
+     * @return A new stream.
+     * @throws IOException If the body of the mail can't be read.
+     */
+    public InputStream openRawStream() throws IOException {
+        return body.openStream(offset, size);
+    }
+
+    /**
+     * Decodes the content of this part as text, in the charset given by its
+     * Content-Type header.
+     *
+     * @return The decoded content.
+     * @throws IOException If the body of the mail can't be read.
+     */
+    public String getContent() throws IOException {
+        final Charset charset = ContentDecoder.charsetOf(headers.get(ContentDecoder.CONTENT_TYPE_HEADER));
+        final ByteArrayOutputStream content = new ByteArrayOutputStream((int) Math.min(size, Integer.MAX_VALUE - 8));
+        try (InputStream stream = openStream()) {
+            final byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = stream.read(buffer)) >= 0) {
+                content.write(buffer, 0, read);
+            }
+        }
+        return new String(content.toByteArray(), charset);
+    }
+
+    /**
+     * Writes the decoded content of this part in the given file.
+     *
+     * @param file File to create or replace.
+     * @return The number of bytes written.
+     * @throws IOException If the body can't be read or the file written.
+     */
+    public long writeTo(Path file) throws IOException {
+        try (InputStream stream = openStream()) {
+            return Files.copy(stream, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MailPart{contentType=" + getContentType() + ", size=" + size + '}';
+    }
+}
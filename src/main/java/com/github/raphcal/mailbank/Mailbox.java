@@ -0,0 +1,400 @@
+package com.github.raphcal.mailbank;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory store of received mails, indexed by recipient, sender,
+ * Message-ID and subject.
+ * <p>
+ * Waiting for a mail does not poll: waiters are completed by the thread
+ * adding the matching mail. The body of each mail is retained while it is in
+ * the mailbox. When a mail is evicted, because the mailbox is full or
+ * because the mail is too old, its body is closed.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class Mailbox implements SmtpHandler {
+    private static final String MESSAGE_ID_HEADER = "Message-ID";
+    private static final String SUBJECT_HEADER = "Subject";
+
+    private final int maxSize;
+    private final long maxAgeMillis;
+
+    private final Deque<Entry> entries = new ConcurrentLinkedDeque<>();
+    private final Map<String, Queue<Entry>> byRecipient = new ConcurrentHashMap<>();
+    private final Map<String, Queue<Entry>> bySender = new ConcurrentHashMap<>();
+    private final Map<String, Queue<Entry>> byMessageId = new ConcurrentHashMap<>();
+    private final Map<String, Queue<Entry>> bySubject = new ConcurrentHashMap<>();
+
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final Object evictionLock = new Object();
+    private int size;
+
+    /**
+     * Creates a mailbox keeping at most 10 000 mails, without age limit.
+     */
+    public Mailbox() {
+        this(10_000, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a mailbox.
+     *
+     * @param maxSize Maximum number of mails, the oldest mails are evicted
+     * first. 0 means no limit.
+     * @param maxAge Age after which a mail is evicted. 0 means no limit.
+     * @param unit Unit of <code>maxAge</code>.
+     */
+    public Mailbox(int maxSize, long maxAge, TimeUnit unit) {
+        this.maxSize = maxSize;
+        this.maxAgeMillis = unit.toMillis(maxAge);
+    }
+
+    @Override
+    public void mailReceived(Mail mail) {
+        mailReceived(mail, System.currentTimeMillis());
+    }
+
+    /**
+     * Stores a mail received earlier, like a mail replayed from a journal.
+     * Its age is counted from the given time.
+     *
+     * @param mail Received mail.
+     * @param receivedAt Time of reception, in milliseconds since the epoch.
+     */
+    void mailReceived(Mail mail, long receivedAt) {
+        if (mail.getBody() != null) {
+            mail.getBody().retain();
+        }
+        final Entry entry = new Entry(mail, receivedAt);
+        synchronized (evictionLock) {
+            entries.addLast(entry);
+            size++;
+            index(byRecipient, entry, mail.getTo());
+            index(bySender, entry, Collections.singletonList(mail.getFrom()));
+            index(byMessageId, entry, Collections.singletonList(header(mail, MESSAGE_ID_HEADER)));
+            index(bySubject, entry, Collections.singletonList(header(mail, SUBJECT_HEADER)));
+            evict();
+        }
+
+        for (final Waiter waiter : waiters) {
+            waiter.test(mail);
+        }
+    }
+
+    /**
+     * Every mail of this mailbox, from the oldest to the newest.
+     *
+     * @return A snapshot of the mails.
+     */
+    public List<Mail> getMails() {
+        evictExpired();
+        return entries.stream()
+                .map(entry -> entry.mail)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Maximum number of mails.
+     *
+     * @return The maximum size, 0 if unlimited.
+     */
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Age after which a mail is evicted.
+     *
+     * @return The maximum age in milliseconds, 0 if unlimited.
+     */
+    long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public int size() {
+        evictExpired();
+        return size;
+    }
+
+    /**
+     * Mails whose envelope contains the given recipient.
+     *
+     * @param address Address, with or without angle brackets. Case is
+     * ignored.
+     * @return The matching mails, from the oldest to the newest.
+     */
+    public List<Mail> findByRecipient(String address) {
+        return find(byRecipient, address);
+    }
+
+    /**
+     * Mails sent by the given sender, according to their envelope.
+     *
+     * @param address Address, with or without angle brackets. Case is
+     * ignored.
+     * @return The matching mails, from the oldest to the newest.
+     */
+    public List<Mail> findBySender(String address) {
+        return find(bySender, address);
+    }
+
+    /**
+     * Mails with the given Message-ID header.
+     *
+     * @param messageId Value of the header, with or without angle brackets.
+     * @return The matching mails, from the oldest to the newest.
+     */
+    public List<Mail> findByMessageId(String messageId) {
+        return find(byMessageId, messageId);
+    }
+
+    /**
+     * Mails with the given subject.
+     *
+     * @param subject Exact subject, case is ignored.
+     * @return The matching mails, from the oldest to the newest.
+     */
+    public List<Mail> findBySubject(String subject) {
+        return find(bySubject, subject);
+    }
+
+    /**
+     * Returns a future completed by the oldest mail matching the given
+     * predicate, already received or not.
+     * <p>
+     * The predicate is tested by the thread delivering each new mail. The
+     * returned future may be cancelled to stop waiting. If the predicate
+     * throws, the future is completed exceptionally with its exception.
+     *
+     * @param predicate Predicate to test.
+     * @return A future completed with the first matching mail.
+     */
+    public CompletableFuture<Mail> whenReceived(Predicate<Mail> predicate) {
+        final Waiter waiter = new Waiter(predicate);
+        waiters.add(waiter);
+        waiter.future.whenComplete((mail, error) -> waiters.remove(waiter));
+
+        for (final Entry entry : entries) {
+            if (waiter.test(entry.mail)) {
+                break;
+            }
+        }
+        return waiter.future;
+    }
+
+    /**
+     * Waits for the oldest mail matching the given predicate.
+     *
+     * @param predicate Predicate to test.
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of <code>timeout</code>.
+     * @return The first matching mail.
+     * @throws InterruptedException If the current thread is interrupted.
+     * @throws TimeoutException If no matching mail was received in time.
+     * @throws IllegalStateException If the predicate failed.
+     */
+    public Mail await(Predicate<Mail> predicate, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        final CompletableFuture<Mail> future = whenReceived(predicate);
+        try {
+            return future.get(timeout, unit);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Mail predicate failed", ex.getCause());
+        } finally {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Waits for the first mail sent to the given recipient.
+     *
+     * @param address Address, with or without angle brackets. Case is
+     * ignored.
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of <code>timeout</code>.
+     * @return The first mail sent to this recipient.
+     * @throws InterruptedException If the current thread is interrupted.
+     * @throws TimeoutException If no matching mail was received in time.
+     */
+    public Mail awaitMailTo(String address, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        final String key = normalize(address);
+        return await(mail -> mail.getTo().stream().anyMatch(to -> key.equals(normalize(to))), timeout, unit);
+    }
+
+    /**
+     * Removes every mail of this mailbox and closes their bodies.
+     */
+    public void clear() {
+        synchronized (evictionLock) {
+            Entry entry;
+            while ((entry = entries.pollFirst()) != null) {
+                close(entry);
+            }
+            size = 0;
+            byRecipient.clear();
+            bySender.clear();
+            byMessageId.clear();
+            bySubject.clear();
+        }
+    }
+
+    private List<Mail> find(Map<String, Queue<Entry>> index, String key) {
+        evictExpired();
+        final Queue<Entry> matches = index.get(normalize(key));
+        if (matches == null) {
+            return Collections.emptyList();
+        }
+        final List<Mail> mails = new ArrayList<>();
+        for (final Entry entry : matches) {
+            mails.add(entry.mail);
+        }
+        return mails;
+    }
+
+    private void evictExpired() {
+        if (maxAgeMillis > 0) {
+            final Entry oldest = entries.peekFirst();
+            if (oldest != null && oldest.receivedAt + maxAgeMillis < System.currentTimeMillis()) {
+                synchronized (evictionLock) {
+                    evict();
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts the oldest entries while the mailbox is too large or their age
+     * is over the limit. Must be called while holding
+     * <code>evictionLock</code>.
+     */
+    private void evict() {
+        final long expiration = System.currentTimeMillis() - maxAgeMillis;
+        Entry oldest;
+        while ((oldest = entries.peekFirst()) != null
+                && ((maxSize > 0 && size > maxSize) || (maxAgeMillis > 0 && oldest.receivedAt < expiration))) {
+            entries.pollFirst();
+            size--;
+            final Mail mail = oldest.mail;
+            unindex(byRecipient, oldest, mail.getTo());
+            unindex(bySender, oldest, Collections.singletonList(mail.getFrom()));
+            unindex(byMessageId, oldest, Collections.singletonList(header(mail, MESSAGE_ID_HEADER)));
+            unindex(bySubject, oldest, Collections.singletonList(header(mail, SUBJECT_HEADER)));
+            close(oldest);
+        }
+    }
+
+    private static void index(Map<String, Queue<Entry>> index, Entry entry, List<String> keys) {
+        if (keys == null) {
+            return;
+        }
+        for (final String key : keys) {
+            if (key != null) {
+                index.computeIfAbsent(normalize(key), k -> new ConcurrentLinkedQueue<>()).add(entry);
+            }
+        }
+    }
+
+    private static void unindex(Map<String, Queue<Entry>> index, Entry entry, List<String> keys) {
+        if (keys == null) {
+            return;
+        }
+        for (final String key : keys) {
+            if (key != null) {
+                index.computeIfPresent(normalize(key), (k, queue) -> {
+                    queue.remove(entry);
+                    return queue.isEmpty() ? null : queue;
+                });
+            }
+        }
+    }
+
+    private static String header(Mail mail, String name) {
+        final Map<String, String> headers = mail.getHeaders();
+        if (headers == null) {
+            return null;
+        }
+        final String value = headers.get(name);
+        if (value != null) {
+            return value;
+        }
+        for (final Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Normalizes an address or a header value used as index key: surrounding
+     * spaces and angle brackets are removed, case is ignored.
+     *
+     * @param key Key to normalize.
+     * @return The normalized key.
+     */
+    private static String normalize(String key) {
+        String value = key.trim();
+        if (value.startsWith("<") && value.endsWith(">")) {
+            value = value.substring(1, value.length() - 1);
+        }
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    private static void close(Entry entry) {
+        MailBody.closeQuietly(entry.mail.getBody());
+    }
+
+    private static class Entry {
+        private final Mail mail;
+        private final long receivedAt;
+
+        Entry(Mail mail, long receivedAt) {
+            this.mail = mail;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    private static class Waiter {
+        private final Predicate<Mail> predicate;
+        private final CompletableFuture<Mail> future = new CompletableFuture<>();
+
+        Waiter(Predicate<Mail> predicate) {
+            this.predicate = predicate;
+        }
+
+        /**
+         * Completes the future with the given mail if it matches. A failure
+         * of the predicate completes the future exceptionally.
+         *
+         * @param mail Mail to test.
+         * @return <code>true</code> if the future has been completed.
+         */
+        boolean test(Mail mail) {
+            try {
+                if (predicate.test(mail)) {
+                    future.complete(mail);
+                    return true;
+                }
+                return false;
+            } catch (RuntimeException ex) {
+                future.completeExceptionally(ex);
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.raphcal.mailbank;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms updated by the reactors and the sessions of a
+ * server.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+class Metrics {
+    final LongAdder connectionsAccepted = new LongAdder();
+    final LongAdder connectionsTimedOut = new LongAdder();
+    final LongAdder messagesReceived = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+
+    final LatencyHistogram[] commandLatency = new LatencyHistogram[MailBuilder.Command.values().length];
+    final LatencyHistogram transactionLatency = new LatencyHistogram();
+    final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    final LatencyHistogram handlerTime = new LatencyHistogram();
+
+    Metrics() {
+        for (int index = 0; index < commandLatency.length; index++) {
+            commandLatency[index] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Measures the handler time and the delay between the end of the DATA and
+     * the end of the delivery.
+     *
+     * @param delivery Delivery of a received mail.
+     * @param dataEndedAt <code>System.nanoTime()</code> at the end of the DATA.
+     * @return The measured delivery.
+     */
+    Runnable timed(final Runnable delivery, final long dataEndedAt) {
+        return () -> {
+            final long start = System.nanoTime();
+            try {
+                delivery.run();
+            } finally {
+                final long end = System.nanoTime();
+                handlerTime.record(end - start);
+                deliveryLatency.record(end - dataEndedAt);
+            }
+        };
+    }
+
+    void commandHandled(MailBuilder.Command command, long nanos) {
+        commandLatency[command.ordinal()].record(nanos);
+    }
+
+    /**
+     * Statistics of the commands received at least once.
+     *
+     * @return The statistics by command name.
+     */
+    Map<String, LatencyStatistics> commandStatistics() {
+        final Map<String, LatencyStatistics> statistics = new LinkedHashMap<>();
+        for (final MailBuilder.Command command : MailBuilder.Command.values()) {
+            final LatencyStatistics value = commandLatency[command.ordinal()].statistics();
+            if (value.getCount() > 0) {
+                statistics.put(command.name(), value);
+            }
+        }
+        return statistics;
+    }
+}
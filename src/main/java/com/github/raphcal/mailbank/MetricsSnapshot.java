@@ -0,0 +1,51 @@
+package com.github.raphcal.mailbank;
+
+import java.util.Map;
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Values of the metrics of a <code>MailBank</code> at a given time. Counts
+ * are since the creation of the server.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@Value
+@Builder
+public class MetricsSnapshot {
+    long connectionsAccepted;
+    int connectionsActive;
+    long connectionsRefused;
+    long connectionsTimedOut;
+
+    long messagesReceived;
+    /**
+     * Bytes read from the clients, commands included.
+     */
+    long bytesReceived;
+
+    int handlerQueueDepth;
+    long handlerRejections;
+    long handlerErrors;
+
+    int buffersBorrowed;
+    int buffersIdle;
+
+    /**
+     * Time spent handling each command, by command name.
+     */
+    Map<String, LatencyStatistics> commandLatency;
+    /**
+     * From the greeting, or the end of the previous mail of the session, to
+     * the end of the DATA of each mail.
+     */
+    LatencyStatistics transactionLatency;
+    /**
+     * From the end of the DATA of each mail to the return of the handler.
+     */
+    LatencyStatistics deliveryLatency;
+    /**
+     * Time spent in the handler for each mail.
+     */
+    LatencyStatistics handlerTime;
+}
@@ -0,0 +1,291 @@
+package com.github.raphcal.mailbank;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Incremental multipart parser. Fed with the lines of a body as they arrive,
+ * it finds the boundaries and the headers of each part and records where
+ * their content starts and ends in the body.
+ * <p>
+ * Nested multiparts are flattened: only the parts holding content are
+ * recorded, in order.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+class MimeScanner {
+    private static final String BOUNDARY_PARAMETER = "boundary=";
+    private static final int MAX_DEPTH = 16;
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    private enum State {
+        /**
+         * Before the first boundary or after the last one of a multipart.
+         */
+        OUTSIDE,
+        HEADERS,
+        CONTENT
+    }
+
+    private final Deque<byte[]> delimiters = new ArrayDeque<>();
+    private final List<ScannedPart> parts = new ArrayList<>();
+    private State state = State.OUTSIDE;
+    private long offset;
+
+    private MailHeaders headers;
+    private long contentStart;
+    private byte[] headerBytes = new byte[256];
+    private int headerLength;
+
+    /**
+     * Creates a scanner for the given mail.
+     *
+     * @param contentType Value of the Content-Type header of the mail.
+     * @return A new scanner or <code>null</code> if the mail is not a
+     * multipart.
+     */
+    static MimeScanner forContentType(String contentType) {
+        final byte[] delimiter = delimiterOf(contentType);
+        return delimiter != null ? new MimeScanner(delimiter) : null;
+    }
+
+    /**
+     * Scans a whole body.
+     *
+     * @param contentType Value of the Content-Type header of the mail.
+     * @param body Body of the mail.
+     * @return The parts of the body, an empty list if the mail is not a
+     * multipart.
+     * @throws IOException If the body can't be read.
+     */
+    static List<MailPart> parts(String contentType, MailBody body) throws IOException {
+        final MimeScanner scanner = forContentType(contentType);
+        if (scanner == null || body == null) {
+            return Collections.emptyList();
+        }
+        final ByteBuffer bytes = body.asByteBuffer();
+        final ByteBuffer line = bytes.duplicate();
+        final int end = bytes.limit();
+        int start = bytes.position();
+        for (int index = start; index < end; index++) {
+            if (bytes.get(index) == '\n') {
+                ((Buffer) line).limit(index + 1).position(start);
+                scanner.line(line);
+                start = index + 1;
+            }
+        }
+        if (start < end) {
+            ((Buffer) line).limit(end).position(start);
+            scanner.line(line);
+        }
+        return scanner.parts(body);
+    }
+
+    private MimeScanner(byte[] delimiter) {
+        delimiters.push(delimiter);
+    }
+
+    /**
+     * Reads the next line of the body.
+     *
+     * @param line Bytes of the line, with its line ending. Not modified.
+     */
+    void line(ByteBuffer line) {
+        final long lineStart = offset;
+        offset += line.remaining();
+
+        final int depth = delimiterDepth(line);
+        if (depth >= 0) {
+            if (state == State.CONTENT) {
+                // The line ending before a boundary belongs to the boundary.
+                addPart(Math.max(contentStart, lineStart - 2));
+            } else if (state == State.HEADERS) {
+                addPart(lineStart);
+            }
+            for (int index = 0; index < depth; index++) {
+                delimiters.pop();
+            }
+            if (isCloseDelimiter(line, delimiters.peek().length)) {
+                delimiters.pop();
+                state = State.OUTSIDE;
+            } else {
+                state = State.HEADERS;
+                headers = new MailHeaders();
+                headerLength = 0;
+            }
+            return;
+        }
+
+        if (state == State.HEADERS) {
+            final int length = lengthWithoutEnding(line);
+            if (length == 0) {
+                flushHeader();
+                startContent();
+            } else if (headerLength > 0 && isContinuation(line.get(line.position()))) {
+                appendHeader(line, length);
+            } else {
+                flushHeader();
+                appendHeader(line, length);
+            }
+        }
+    }
+
+    /**
+     * Ends the scan.
+     *
+     * @param body Body of the scanned mail.
+     * @return The parts found in the body.
+     */
+    List<MailPart> parts(MailBody body) {
+        if (state == State.CONTENT) {
+            // Missing close delimiter: the part ends with the body.
+            addPart(offset);
+        }
+        state = State.OUTSIDE;
+        final List<MailPart> result = new ArrayList<>(parts.size());
+        for (final ScannedPart part : parts) {
+            result.add(new MailPart(part.headers, body, part.start, part.end - part.start));
+        }
+        return result;
+    }
+
+    private void startContent() {
+        final byte[] delimiter = delimiterOf(headers.get(ContentDecoder.CONTENT_TYPE_HEADER));
+        if (delimiter != null && delimiters.size() < MAX_DEPTH) {
+            delimiters.push(delimiter);
+            state = State.OUTSIDE;
+        } else {
+            state = State.CONTENT;
+            contentStart = offset;
+        }
+    }
+
+    private void addPart(long end) {
+        if (state == State.HEADERS) {
+            flushHeader();
+            contentStart = end;
+        }
+        parts.add(new ScannedPart(headers, contentStart, end));
+    }
+
+    private void appendHeader(ByteBuffer line, int length) {
+        if (headerLength + length > MAX_HEADER_SIZE) {
+            return;
+        }
+        if (headerLength + length > headerBytes.length) {
+            headerBytes = Arrays.copyOf(headerBytes, Math.max(headerBytes.length * 2, headerLength + length));
+        }
+        for (int index = 0; index < length; index++) {
+            headerBytes[headerLength + index] = line.get(line.position() + index);
+        }
+        headerLength += length;
+    }
+
+    private void flushHeader() {
+        if (headerLength == 0) {
+            return;
+        }
+        final ByteBuffer header = ByteBuffer.wrap(headerBytes, 0, headerLength);
+        if (MailHeaders.indexOfColon(header) < headerLength) {
+            headers.addLine(header);
+        }
+        headerLength = 0;
+    }
+
+    /**
+     * Finds the multipart whose boundary is the given line.
+     *
+     * @return The number of nested multiparts to close before the matching
+     * one, -1 if the line is not a boundary.
+     */
+    private int delimiterDepth(ByteBuffer line) {
+        if (delimiters.isEmpty() || line.remaining() < 3
+                || line.get(line.position()) != '-' || line.get(line.position() + 1) != '-') {
+            return -1;
+        }
+        int depth = 0;
+        for (final byte[] delimiter : delimiters) {
+            if (startsWith(line, delimiter) && isDelimiterEnd(line, delimiter.length)) {
+                return depth;
+            }
+            depth++;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(ByteBuffer line, byte[] prefix) {
+        if (line.remaining() < prefix.length) {
+            return false;
+        }
+        final int start = line.position();
+        for (int index = 0; index < prefix.length; index++) {
+            if (line.get(start + index) != prefix[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that only "--" and spaces follow the delimiter.
+     */
+    private static boolean isDelimiterEnd(ByteBuffer line, int delimiterLength) {
+        int index = line.position() + delimiterLength;
+        final int end = line.position() + lengthWithoutEnding(line);
+        if (index + 1 < end && line.get(index) == '-' && line.get(index + 1) == '-') {
+            index += 2;
+        }
+        while (index < end && isContinuation(line.get(index))) {
+            index++;
+        }
+        return index == end;
+    }
+
+    private static boolean isCloseDelimiter(ByteBuffer line, int delimiterLength) {
+        final int index = line.position() + delimiterLength;
+        return index + 1 < line.limit() && line.get(index) == '-' && line.get(index + 1) == '-';
+    }
+
+    private static int lengthWithoutEnding(ByteBuffer line) {
+        int end = line.limit();
+        if (end > line.position() && line.get(end - 1) == '\n') {
+            end--;
+        }
+        if (end > line.position() && line.get(end - 1) == '\r') {
+            end--;
+        }
+        return end - line.position();
+    }
+
+    private static boolean isContinuation(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static byte[] delimiterOf(String contentType) {
+        if (contentType == null || !contentType.regionMatches(true, 0, "multipart/", 0, 10)) {
+            return null;
+        }
+        final String boundary = ContentDecoder.parameter(contentType, BOUNDARY_PARAMETER);
+        return boundary != null ? ("--" + boundary).getBytes(StandardCharsets.US_ASCII) : null;
+    }
+
+    private static class ScannedPart {
+        private final MailHeaders headers;
+        private final long start;
+        private final long end;
+
+        ScannedPart(MailHeaders headers, long start, long end) {
+            this.headers = headers;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
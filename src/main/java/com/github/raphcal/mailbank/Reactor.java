@@ -0,0 +1,587 @@
+package com.github.raphcal.mailbank;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Selector loop reading and writing the client connections registered to it.
+ * <p>
+ * A reactor either runs on its own thread (worker mode) or shares the
+ * selector of the server thread.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@Slf4j
+class Reactor implements Runnable {
+
+    private static final int END_OF_CHANNEL = -1;
+    private static final int TIMER_SLOT_COUNT = 512;
+
+    private final Selector selector;
+    private final BufferPool bufferPool;
+
+    /**
+     * Timeouts of the connections. Each connection uses the timeouts of its
+     * listener. The wheel is replaced by a finer one when a listener with
+     * shorter timeouts is added.
+     */
+    private TimerWheel<SelectionKey> timeouts;
+    private volatile long timerTick;
+
+    private final Queue<Registration> registrations = new ConcurrentLinkedQueue<>();
+    /**
+     * Work given by other threads, run by the selecting thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    /**
+     * Connections whose mail is waiting for a free slot in the handler queue.
+     */
+    private final Deque<SelectionKey> suspendedKeys = new ArrayDeque<>();
+    private final AtomicBoolean capacityAvailable = new AtomicBoolean();
+
+    /**
+     * Array given to gathering writes, reused from one write to the next.
+     */
+    private ByteBuffer[] writeBuffers = new ByteBuffer[16];
+
+    /**
+     * Creates a reactor.
+     *
+     * @param selector Selector of the reactor.
+     * @param bufferPool Read buffers shared by every reactor.
+     * @param configuration Configuration of the engine. Its timeouts set the
+     * initial precision of the timeouts.
+     */
+    Reactor(Selector selector, BufferPool bufferPool, MailBankConfiguration configuration) {
+        this.selector = selector;
+        this.bufferPool = bufferPool;
+        this.timerTick = timerTick(configuration);
+        this.timeouts = new TimerWheel<>(timerTick, TIMER_SLOT_COUNT, now());
+    }
+
+    /**
+     * Ticks of 10 ms to 1 s, depending on the shortest timeout.
+     */
+    private static long timerTick(MailBankConfiguration configuration) {
+        long shortestTimeout = Long.MAX_VALUE;
+        for (final long timeout : new long[] {configuration.getIdleTimeout(), configuration.getCommandTimeout(), configuration.getSessionTimeout()}) {
+            if (timeout > 0) {
+                shortestTimeout = Math.min(shortestTimeout, timeout);
+            }
+        }
+        return Math.max(10, Math.min(1000, shortestTimeout / 50));
+    }
+
+    /**
+     * Starts serving the connections of the given listener: mails suspended
+     * by a full handler queue are resumed when a delivery ends.
+     *
+     * @param listener New listener.
+     */
+    void listenerAdded(Listener listener) {
+        final long tick = timerTick(listener.getConfiguration());
+        if (tick < timerTick) {
+            timerTick = tick;
+            execute(() -> refineTimeouts(tick));
+        }
+        if (listener.getConfiguration().getBackpressure() == MailBankConfiguration.Backpressure.SUSPEND_READS) {
+            listener.getDispatcher().addCapacityListener(() -> {
+                if (capacityAvailable.compareAndSet(false, true)) {
+                    selector.wakeup();
+                }
+            });
+        }
+    }
+
+    /**
+     * Replaces the timer wheel by one with shorter ticks and schedules again
+     * the timeouts of every connection.
+     */
+    private void refineTimeouts(long tick) {
+        timeouts = new TimerWheel<>(tick, TIMER_SLOT_COUNT, now());
+        for (final SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof Attachment) {
+                schedule(key, (Attachment) key.attachment());
+            }
+        }
+    }
+
+    /**
+     * Closes the connections of the given listener. May be called from any
+     * thread.
+     *
+     * @param listener Removed listener.
+     */
+    void listenerRemoved(Listener listener) {
+        execute(() -> forEachKey(listener, key -> close((SocketChannel) key.channel(), key)));
+    }
+
+    /**
+     * Ends the connections of the given listener once their current mail
+     * has been answered. May be called from any thread.
+     *
+     * @param listener Drained listener.
+     */
+    void drain(Listener listener) {
+        execute(() -> forEachKey(listener, key -> {
+            final Attachment attachment = (Attachment) key.attachment();
+            attachment.getMailBuilder().drain();
+            replyIfReady(key, attachment);
+        }));
+    }
+
+    /**
+     * Ends the connections of the given listener now, aborting the mails in
+     * progress. May be called from any thread.
+     *
+     * @param listener Drained listener.
+     */
+    void shutdown(Listener listener) {
+        execute(() -> forEachKey(listener, key -> {
+            final Attachment attachment = (Attachment) key.attachment();
+            if (key.interestOps() == 0) {
+                suspendedKeys.remove(key);
+                attachment.setPendingDelivery(null);
+            }
+            attachment.getMailBuilder().shutdown();
+            if (attachment.getMailBuilder().hasResponse()) {
+                // Suspended connections included: the 421 has to be written
+                // before the connection is closed.
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }));
+    }
+
+    private void forEachKey(Listener listener, Consumer<SelectionKey> action) {
+        for (final SelectionKey key : selector.keys()) {
+            final Object attachment = key.attachment();
+            if (key.isValid() && attachment instanceof Attachment && ((Attachment) attachment).getListener() == listener) {
+                action.accept(key);
+            }
+        }
+    }
+
+    /**
+     * Writes the replies of a connection waiting for the client. Suspended
+     * connections write theirs once resumed.
+     */
+    private void replyIfReady(SelectionKey key, Attachment attachment) {
+        if (key.interestOps() == SelectionKey.OP_READ && attachment.getMailBuilder().hasResponse()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Runs the given task on the thread selecting on this reactor.
+     *
+     * @param task Task to run.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select(selectTimeout());
+                processPending();
+                final Set<SelectionKey> keys = selector.selectedKeys();
+                final Iterator<SelectionKey> keyIterator = keys.iterator();
+                while (keyIterator.hasNext()) {
+                    final SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    handleKey(key);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.error("An unexpected error happened in reactor " + Thread.currentThread().getName(), ex);
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Registers the given channel to this reactor. May be called from any
+     * thread.
+     *
+     * @param channel Accepted client channel.
+     * @param attachment Connection state.
+     */
+    void register(SocketChannel channel, Attachment attachment) {
+        connectionCount.incrementAndGet();
+        registrations.add(new Registration(channel, attachment));
+        selector.wakeup();
+    }
+
+    /**
+     * Maximum time the selector may wait before the next call to
+     * <code>processPending</code>.
+     *
+     * @return A timeout for <code>Selector.select(long)</code>, 0 to wait
+     * until a key is selected.
+     */
+    long selectTimeout() {
+        return timeouts.delayToNextTick(now());
+    }
+
+    /**
+     * Registers the channels given to <code>register</code> since the last
+     * call, retries the delivery of suspended mails and closes the
+     * connections which timed out. Must be called from the thread selecting
+     * on the selector.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    void processPending() throws IOException {
+        if (capacityAvailable.getAndSet(false)) {
+            resumeSuspended();
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        Registration registration;
+        while ((registration = registrations.poll()) != null) {
+            final Attachment attachment = registration.getAttachment();
+            try {
+                final SelectionKey key = registration.getChannel().register(selector, SelectionKey.OP_WRITE, attachment);
+                final long now = now();
+                attachment.setConnectedAt(now);
+                attachment.setLastReadAt(now);
+                attachment.setLastReplyAt(now);
+                schedule(key, attachment);
+                if (attachment.getListener().isDraining()) {
+                    // Accepted just before the listener stopped accepting.
+                    attachment.getMailBuilder().drain();
+                }
+            } catch (IOException ex) {
+                log.warn("Unable to register channel " + registration.getChannel(), ex);
+                close(registration.getChannel(), null, attachment);
+            }
+        }
+        timeouts.expire(now(), this::checkTimeout);
+    }
+
+    /**
+     * Handles a ready client key. An I/O error only closes the connection of
+     * the key.
+     *
+     * @param key Key selected by the selector.
+     */
+    void handleKey(final SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            if (key.isReadable()) {
+                readData(key);
+            } else if (key.isWritable()) {
+                writeData(key);
+            }
+        } catch (IOException ex) {
+            log.debug("Closing connection " + key.channel() + " after an I/O error", ex);
+            close((SocketChannel) key.channel(), key);
+        }
+    }
+
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Closes every channel still registered to this reactor.
+     */
+    void closeAll() {
+        Registration registration;
+        while ((registration = registrations.poll()) != null) {
+            close(registration.getChannel(), null, registration.getAttachment());
+        }
+        if (selector.isOpen()) {
+            for (final SelectionKey key : selector.keys()) {
+                if (key.channel() instanceof SocketChannel) {
+                    close((SocketChannel) key.channel(), key);
+                }
+            }
+        }
+    }
+
+    private void readData(final SelectionKey key) throws IOException {
+        final SocketChannel channel = (SocketChannel) key.channel();
+
+        final Attachment attachment = (Attachment) key.attachment();
+        if (attachment.getBuffer() == null) {
+            attachment.setBuffer(bufferPool.borrow(attachment.getMailBuilder().isReceivingContent()));
+        }
+        int bytes = channel.read(attachment.getBuffer());
+
+        if (bytes == END_OF_CHANNEL) {
+            close(channel, key);
+            return;
+        }
+        if (bytes > 0) {
+            attachment.setLastReadAt(now());
+            attachment.getListener().getMetrics().bytesReceived.add(bytes);
+        }
+        if (process(key, attachment)) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Feeds the read bytes to the session and delivers every mail they
+     * complete. The read buffer is given back to the pool once empty.
+     *
+     * @param key Key of the connection.
+     * @param attachment Connection state.
+     * @return <code>true</code> if replies are waiting to be written,
+     * <code>false</code> otherwise or if the connection has been suspended.
+     * @throws IOException If an I/O error occurs.
+     */
+    private boolean process(final SelectionKey key, final Attachment attachment) throws IOException {
+        final MailBuilder mailBuilder = attachment.getMailBuilder();
+        final ByteBuffer buffer = attachment.getBuffer();
+        if (buffer == null) {
+            return mailBuilder.hasResponse();
+        }
+        ((Buffer) buffer).flip();
+        try {
+            mailBuilder.feedBytes(buffer);
+            while (mailBuilder.isMailComplete()) {
+                if (!deliver(attachment)) {
+                    key.interestOps(0);
+                    suspendedKeys.add(key);
+                    return false;
+                }
+                mailBuilder.feedBytes(buffer);
+            }
+        } finally {
+            buffer.compact();
+            if (buffer.position() == 0) {
+                releaseBuffer(attachment);
+            }
+        }
+        return mailBuilder.hasResponse();
+    }
+
+    private void releaseBuffer(final Attachment attachment) {
+        final ByteBuffer buffer = attachment.getBuffer();
+        if (buffer != null) {
+            attachment.setBuffer(null);
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Ends the received mail and gives its delivery to the dispatcher.
+     *
+     * @param attachment Connection state.
+     * @return <code>false</code> if the connection has to be suspended until
+     * the handler queue has room for the mail.
+     */
+    private boolean deliver(final Attachment attachment) {
+        final MailBuilder mailBuilder = attachment.getMailBuilder();
+        Runnable delivery = attachment.getPendingDelivery();
+        if (delivery == null) {
+            try {
+                delivery = mailBuilder.endOfMessage();
+            } catch (RuntimeException ex) {
+                log.error("Unable to complete received mail", ex);
+                mailBuilder.mailFailed();
+                return true;
+            }
+            if (delivery == null) {
+                mailBuilder.mailAccepted();
+                return true;
+            }
+            delivery = attachment.getListener().getMetrics().timed(delivery, mailBuilder.getDataEndedAt());
+        }
+
+        final Listener listener = attachment.getListener();
+        if (listener.getDispatcher().dispatch(delivery)) {
+            attachment.setPendingDelivery(null);
+            mailBuilder.mailAccepted();
+        } else if (listener.getConfiguration().getBackpressure() == MailBankConfiguration.Backpressure.REJECT) {
+            mailBuilder.mailRejected();
+        } else {
+            attachment.setPendingDelivery(delivery);
+            return false;
+        }
+        return true;
+    }
+
+    private void resumeSuspended() throws IOException {
+        SelectionKey key;
+        while ((key = suspendedKeys.poll()) != null) {
+            if (!key.isValid()) {
+                continue;
+            }
+            final Attachment attachment = (Attachment) key.attachment();
+            if (!deliver(attachment)) {
+                suspendedKeys.addFirst(key);
+                return;
+            }
+            if (process(key, attachment)) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Writes the queued replies with a single gathering write. Replies the
+     * socket could not take stay queued until the channel is writable again.
+     */
+    private void writeData(final SelectionKey key) throws IOException {
+        final Attachment attachment = (Attachment) key.attachment();
+        final MailBuilder mailBuilder = attachment.getMailBuilder();
+        final SocketChannel channel = (SocketChannel) key.channel();
+        final Deque<ByteBuffer> outbound = attachment.getOutbound();
+
+        ByteBuffer response;
+        while ((response = mailBuilder.pollResponse()) != null) {
+            if (log.isTraceEnabled()) {
+                log.trace("> " + StandardCharsets.US_ASCII.decode(response.duplicate()));
+            }
+            outbound.add(response);
+        }
+        final int count = outbound.size();
+        if (count > writeBuffers.length) {
+            writeBuffers = new ByteBuffer[Math.max(count, writeBuffers.length * 2)];
+        }
+        channel.write(outbound.toArray(writeBuffers), 0, count);
+
+        while (!outbound.isEmpty() && !outbound.peekFirst().hasRemaining()) {
+            outbound.pollFirst();
+        }
+        if (!outbound.isEmpty()) {
+            return;
+        }
+        attachment.setLastReplyAt(now());
+        if (mailBuilder.isDone()) {
+            close(channel, key);
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Closes the connection of the given key with a 421 reply if one of its
+     * timeouts expired, schedules its next check otherwise.
+     */
+    private void checkTimeout(final SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        final Attachment attachment = (Attachment) key.attachment();
+        final long now = now();
+        if (key.interestOps() == 0) {
+            // Suspended connections wait for the server, not for the client.
+            attachment.setLastReadAt(now);
+            attachment.setLastReplyAt(now);
+        }
+        final long deadline = nextDeadline(key, attachment);
+        if (deadline > now) {
+            timeouts.schedule(key, deadline);
+            return;
+        }
+        final SocketChannel channel = (SocketChannel) key.channel();
+        log.debug("Connection " + channel + " timed out");
+        attachment.getListener().getMetrics().connectionsTimedOut.increment();
+        try {
+            channel.write(MailBuilder.TIMEOUT.duplicate());
+        } catch (IOException ex) {
+            log.debug("Unable to send timeout reply to " + channel, ex);
+        }
+        close(channel, key);
+    }
+
+    /**
+     * Schedules the next timeout check of a connection, if its listener has
+     * timeouts.
+     */
+    private void schedule(final SelectionKey key, final Attachment attachment) {
+        final MailBankConfiguration configuration = attachment.getListener().getConfiguration();
+        if (configuration.getIdleTimeout() > 0 || configuration.getCommandTimeout() > 0 || configuration.getSessionTimeout() > 0) {
+            timeouts.schedule(key, nextDeadline(key, attachment));
+        }
+    }
+
+    private long nextDeadline(final SelectionKey key, final Attachment attachment) {
+        final MailBankConfiguration configuration = attachment.getListener().getConfiguration();
+        final long idleTimeout = configuration.getIdleTimeout();
+        final long commandTimeout = configuration.getCommandTimeout();
+        final long sessionTimeout = configuration.getSessionTimeout();
+        long deadline = Long.MAX_VALUE;
+        if (sessionTimeout > 0) {
+            deadline = attachment.getConnectedAt() + sessionTimeout;
+        }
+        if (idleTimeout > 0) {
+            deadline = Math.min(deadline, attachment.getLastReadAt() + idleTimeout);
+        }
+        if (commandTimeout > 0 && key.interestOps() == SelectionKey.OP_READ
+                && !attachment.getMailBuilder().isReceivingContent()) {
+            deadline = Math.min(deadline, attachment.getLastReplyAt() + commandTimeout);
+        }
+        if (deadline == Long.MAX_VALUE) {
+            // Only the command timeout applies and replies are being
+            // written: checked again later.
+            deadline = now() + commandTimeout;
+        }
+        return deadline;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private void close(final SocketChannel channel, final SelectionKey key) {
+        close(channel, key, (Attachment) key.attachment());
+    }
+
+    private void close(final SocketChannel channel, final SelectionKey key, final Attachment attachment) {
+        if (key != null) {
+            key.cancel();
+            attachment.getMailBuilder().abort();
+            releaseBuffer(attachment);
+        }
+        if (channel.isOpen()) {
+            attachment.getListener().getLimiter().release(channel);
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.debug("Unable to close channel " + channel, ex);
+            }
+            connectionCount.decrementAndGet();
+        }
+    }
+
+    @Value
+    private static class Registration {
+        private SocketChannel channel;
+        private Attachment attachment;
+    }
+}
@@ -1,166 +1,437 @@
-package com.github.raphcal.mailbank;
-
-import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.Buffer;
-import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.Semaphore;
-import lombok.extern.slf4j.Slf4j;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-/**
- * Thread gérant l'envoi et la réception de requêtes HTTP.
- *
- * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
- */
-@Slf4j
-class Server implements Runnable {
-
-    private static final Logger LOGGER = LoggerFactory.getLogger(Server.class);
-
-    private static final int END_OF_CHANNEL = -1;
-
-    private InetSocketAddress endpoint;
-    private int port;
-
-    private final SmtpHandler handler;
-    private final Object runningLock;
-    private final Semaphore startSemaphore;
-
-    /**
-     * Créé une nouveau serveur HTTP.
-     *
-     * @param servlet Objet s'occupant de configurer les réponses aux requêtes
-     * reçues.
-     * @param port Port où écouter les requêtes.
-     * @param runningLock Objet servant de verrou d'exécution.
-     * @param startLock Lock de démarrage.
-     */
-    public Server(SmtpHandler handler, int port, Object runningLock, Semaphore startSemaphore) {
-        this.port = port;
-        this.handler = handler;
-        this.runningLock = runningLock;
-        this.startSemaphore = startSemaphore;
-
-        try {
-            startSemaphore.acquire();
-        } catch (InterruptedException ex) {
-            LOGGER.error("Interrupted before acquiring start semaphore.", ex);
-        }
-    }
-
-    @Override
-    public void run() {
-        synchronized (runningLock) {
-            try (final ServerSocketChannel serverChannel = ServerSocketChannel.open(); final Selector selector = Selector.open()) {
-                startServer(serverChannel, selector);
-
-                while (!Thread.currentThread().isInterrupted()) {
-                    handleIO(selector);
-                }
-            } catch (IOException | RuntimeException ex) {
-                LOGGER.error("An unexpected error happened for server " + endpoint, ex);
-            }
-        }
-    }
-
-    public InetSocketAddress getEndpoint() {
-        return endpoint;
-    }
-
-    private void startServer(ServerSocketChannel serverChannel, Selector selector) throws ClosedChannelException, IOException {
-        serverChannel.configureBlocking(false);
-        while (endpoint == null) {
-            final InetSocketAddress address = new InetSocketAddress(port);
-            try {
-                serverChannel.socket().bind(address);
-                this.endpoint = address;
-            } catch (IOException e) {
-                LOGGER.debug("Unable to bind to address " + address, e);
-                port++;
-            }
-        }
-        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-        startSemaphore.release();
-    }
-
-    private void handleIO(final Selector selector) throws IOException {
-        selector.select();
-
-        final Set<SelectionKey> keys = selector.selectedKeys();
-        final Iterator<SelectionKey> keyIterator = keys.iterator();
-        while (keyIterator.hasNext()) {
-            final SelectionKey key = keyIterator.next();
-            keyIterator.remove();
-
-            if (key.isAcceptable()) {
-                acceptClient(key, selector);
-            } else if (key.isReadable()) {
-                readData(key);
-            } else if (key.isWritable()) {
-                writeData(key);
-            }
-        }
-    }
-
-    private void acceptClient(final SelectionKey key, final Selector selector) throws IOException, ClosedChannelException {
-        final ServerSocketChannel server = (ServerSocketChannel) key.channel();
-
-        final SocketChannel channel = server.accept();
-        channel.configureBlocking(false);
-
-        channel.register(selector, SelectionKey.OP_WRITE, new Attachment(new MailBuilder(endpoint)));
-    }
-
-    private void readData(final SelectionKey key) throws IOException {
-        final SocketChannel channel = (SocketChannel) key.channel();
-
-        final Attachment attachment = (Attachment) key.attachment();
-        final MailBuilder mailBuilder = attachment.getMailBuilder();
-        final ByteBuffer buffer = attachment.getBuffer();
-        int bytes = channel.read(buffer);
-
-        if (bytes == END_OF_CHANNEL) {
-            channel.close();
-            key.cancel();
-        } else if (bytes > 0) {
-            ((Buffer) buffer).flip();
-            mailBuilder.feedBytes(buffer);
-            buffer.compact();
-        }
-
-        if (mailBuilder.hasResponse()) {
-            key.interestOps(SelectionKey.OP_WRITE);
-        }
-    }
-
-    private void writeData(final SelectionKey key) throws IOException {
-        final Attachment attachment = (Attachment) key.attachment();
-        final MailBuilder mailBuilder = attachment.getMailBuilder();
-        final SocketChannel channel = (SocketChannel) key.channel();
-        final String response = mailBuilder.getResponse();
-        log.trace("> " + response);
-        final ByteBuffer buffer = ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII));
-        while (buffer.hasRemaining()) {
-            channel.write(buffer);
-        }
-
-        if (mailBuilder.isDone()) {
-            channel.close();
-            key.cancel();
-            handler.mailReceived(mailBuilder.build());
-        } else {
-            key.interestOps(SelectionKey.OP_READ);
-        }
-    }
-
-}
+package com.github.raphcal.mailbank;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread gérant l'acceptation des connexions de tous les écouteurs d'un
+ * moteur ainsi que la lecture et l'écriture de leurs sessions.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@Slf4j
+class Server implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Server.class);
+
+    private final BufferPool bufferPool;
+    private final MailBankConfiguration configuration;
+    private final Object runningLock;
+    private final Semaphore startSemaphore;
+
+    /**
+     * Écouteurs enregistrés, quel que soit le transport.
+     */
+    private final Set<Listener> listeners = ConcurrentHashMap.newKeySet();
+
+    private volatile Reactor localReactor;
+    /**
+     * Workers, parcourus par les threads ajoutant ou retirant un écouteur
+     * pendant que le thread serveur les arrête.
+     */
+    private final List<Reactor> workers = new CopyOnWriteArrayList<>();
+    private final List<Thread> workerThreads = new ArrayList<>();
+    private int nextWorker;
+
+    /**
+     * Vrai entre la fin du démarrage et le début de l'arrêt.
+     */
+    private volatile boolean running;
+
+    /**
+     * Exécuteur des sessions et des boucles d'acceptation du transport
+     * bloquant.
+     */
+    private volatile ExecutorService sessionExecutor;
+
+    /**
+     * Créé un nouveau serveur.
+     *
+     * @param configuration Configuration du moteur : transport, workers et
+     * tampons.
+     * @param runningLock Objet servant de verrou d'exécution.
+     * @param startSemaphore Sémaphore libéré une fois le serveur prêt à
+     * recevoir des écouteurs.
+     */
+    public Server(MailBankConfiguration configuration, Object runningLock, Semaphore startSemaphore) {
+        this.bufferPool = new BufferPool(configuration);
+        this.configuration = configuration;
+        this.runningLock = runningLock;
+        this.startSemaphore = startSemaphore;
+    }
+
+    @Override
+    public void run() {
+        synchronized (runningLock) {
+            if (configuration.getTransport() == MailBankConfiguration.Transport.BLOCKING) {
+                runBlocking();
+                return;
+            }
+            try (final Selector selector = Selector.open()) {
+                localReactor = new Reactor(selector, bufferPool, configuration);
+                startWorkers();
+                running = true;
+                startSemaphore.release();
+
+                while (!Thread.currentThread().isInterrupted()) {
+                    handleIO(selector);
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.error("An unexpected error happened in the server thread", ex);
+            } finally {
+                running = false;
+                for (final Listener listener : listeners) {
+                    removeListener(listener);
+                    listener.stopBatcher();
+                }
+                stopWorkers();
+                if (localReactor != null) {
+                    localReactor.closeAll();
+                }
+                // Débloque un démarrage en attente si l'ouverture a échoué.
+                startSemaphore.release();
+            }
+        }
+    }
+
+    /**
+     * Transport bloquant : chaque écouteur a sa boucle d'acceptation et
+     * chaque connexion est servie par son propre thread (virtuel si
+     * possible). Le thread serveur attend simplement l'arrêt.
+     */
+    private void runBlocking() {
+        sessionExecutor = newSessionExecutor();
+        running = true;
+        startSemaphore.release();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                LockSupport.park(this);
+            }
+        } finally {
+            running = false;
+            for (final Listener listener : listeners) {
+                removeListener(listener);
+                listener.stopBatcher();
+            }
+            sessionExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Commence à accepter les connexions d'un écouteur. Le port est ouvert
+     * par le thread appelant.
+     *
+     * @param listener Écouteur à ajouter.
+     * @param port Port où écouter, 0 pour un port éphémère.
+     * @param nextFreePort <code>true</code> pour essayer les ports suivants
+     * si le port est pris.
+     * @throws IOException Si le port ne peut pas être ouvert.
+     */
+    void addListener(Listener listener, int port, boolean nextFreePort) throws IOException {
+        listener.bind(port, nextFreePort);
+        listeners.add(listener);
+        if (configuration.getTransport() == MailBankConfiguration.Transport.BLOCKING) {
+            sessionExecutor.execute(() -> acceptBlocking(listener));
+            return;
+        }
+        final Reactor reactor = localReactor;
+        final ServerSocketChannel serverChannel = listener.getChannel();
+        serverChannel.configureBlocking(false);
+        reactor.listenerAdded(listener);
+        for (final Reactor worker : workers) {
+            worker.listenerAdded(listener);
+        }
+        reactor.execute(() -> {
+            try {
+                serverChannel.register(reactor.getSelector(), SelectionKey.OP_ACCEPT, listener);
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to listen on " + listener.getEndpoint(), ex);
+            }
+        });
+    }
+
+    /**
+     * Ferme le port d'un écouteur et ses connexions. Les autres écouteurs
+     * ne sont pas affectés.
+     *
+     * @param listener Écouteur à retirer.
+     */
+    void removeListener(Listener listener) {
+        if (!listeners.remove(listener)) {
+            return;
+        }
+        listener.unbind();
+        if (configuration.getTransport() == MailBankConfiguration.Transport.BLOCKING) {
+            // La fermeture des sockets débloque les threads en lecture.
+            for (final BlockingSession session : listener.getSessions()) {
+                session.close();
+            }
+            return;
+        }
+        forEachReactor(reactor -> reactor.listenerRemoved(listener));
+    }
+
+    /**
+     * Arrête d'accepter les connexions d'un écouteur et termine ses sessions
+     * une fois leur courrier en cours traité.
+     *
+     * @param listener Écouteur à vider.
+     */
+    void drainListener(Listener listener) {
+        listener.drain();
+        if (configuration.getTransport() == MailBankConfiguration.Transport.BLOCKING) {
+            for (final BlockingSession session : listener.getSessions()) {
+                session.drain();
+            }
+            return;
+        }
+        forEachReactor(reactor -> reactor.drain(listener));
+    }
+
+    /**
+     * Termine immédiatement les sessions d'un écouteur avec une réponse 421,
+     * les courriers en cours sont abandonnés.
+     *
+     * @param listener Écouteur à vider.
+     */
+    void shutdownListener(Listener listener) {
+        if (configuration.getTransport() == MailBankConfiguration.Transport.BLOCKING) {
+            for (final BlockingSession session : listener.getSessions()) {
+                session.shutdown();
+            }
+            return;
+        }
+        forEachReactor(reactor -> reactor.shutdown(listener));
+    }
+
+    private void forEachReactor(Consumer<Reactor> action) {
+        final Reactor reactor = localReactor;
+        if (reactor != null) {
+            action.accept(reactor);
+        }
+        for (final Reactor worker : workers) {
+            action.accept(worker);
+        }
+    }
+
+    /**
+     * Boucle d'acceptation d'un écouteur du transport bloquant.
+     */
+    private void acceptBlocking(Listener listener) {
+        final ServerSocketChannel serverChannel = listener.getChannel();
+        try {
+            while (serverChannel.isOpen()) {
+                final SocketChannel channel = serverChannel.accept();
+                if (!listener.getLimiter().tryAcquire(channel)) {
+                    refuse(channel);
+                    continue;
+                }
+                final BlockingSession session = new BlockingSession(channel, listener.newSession(), listener);
+                listener.getSessions().add(session);
+                if (listener.isDraining()) {
+                    // Acceptée juste avant l'arrêt de l'écoute.
+                    session.drain();
+                } else if (!serverChannel.isOpen()) {
+                    // Écouteur retiré pendant l'acceptation.
+                    session.end();
+                    break;
+                }
+                sessionExecutor.execute(session);
+            }
+        } catch (AsynchronousCloseException ex) {
+            LOGGER.debug("Listener " + listener.getEndpoint() + " closed.");
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.error("An unexpected error happened for listener " + listener.getEndpoint(), ex);
+        }
+    }
+
+    /**
+     * Créé l'exécuteur des sessions bloquantes : un thread virtuel par
+     * connexion avec Java 21 et plus, un thread classique sinon.
+     *
+     * @return Un nouvel exécuteur.
+     */
+    private static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            LOGGER.debug("Virtual threads are not available, using platform threads.");
+            final AtomicInteger threadCount = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                final Thread thread = new Thread(runnable, "mailbank-session-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Indique si le serveur peut recevoir des écouteurs.
+     *
+     * @return <code>true</code> une fois le sélecteur ou l'exécuteur des
+     * sessions créé.
+     */
+    boolean isReady() {
+        return configuration.getTransport() == MailBankConfiguration.Transport.BLOCKING
+                ? sessionExecutor != null
+                : localReactor != null;
+    }
+
+    /**
+     * Indique si le serveur accepte des écouteurs.
+     *
+     * @return <code>true</code> une fois démarré et jusqu'au début de son
+     * arrêt.
+     */
+    boolean isRunning() {
+        return running;
+    }
+
+    private void startWorkers() throws IOException {
+        final int workerCount = configuration.getWorkerCount();
+        for (int index = 0; index < workerCount; index++) {
+            final Reactor worker = new Reactor(Selector.open(), bufferPool, configuration);
+            final Thread thread = new Thread(worker, "mailbank-worker-" + index);
+            workers.add(worker);
+            workerThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    private void stopWorkers() {
+        for (final Thread thread : workerThreads) {
+            thread.interrupt();
+        }
+        // Le thread serveur est interrompu lors de l'arrêt, il faut effacer
+        // ce statut pour pouvoir attendre les workers.
+        final boolean interrupted = Thread.interrupted();
+        for (int index = 0; index < workers.size(); index++) {
+            try {
+                workerThreads.get(index).join();
+            } catch (InterruptedException ex) {
+                LOGGER.warn("Interrupted while waiting for worker " + index + " to stop.", ex);
+            }
+            try {
+                workers.get(index).getSelector().close();
+            } catch (IOException ex) {
+                LOGGER.debug("Unable to close selector of worker " + index, ex);
+            }
+        }
+        workers.clear();
+        workerThreads.clear();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleIO(final Selector selector) throws IOException {
+        selector.select(localReactor.selectTimeout());
+        localReactor.processPending();
+
+        final Set<SelectionKey> keys = selector.selectedKeys();
+        final Iterator<SelectionKey> keyIterator = keys.iterator();
+        while (keyIterator.hasNext()) {
+            final SelectionKey key = keyIterator.next();
+            keyIterator.remove();
+
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                acceptClient(key);
+            } else {
+                localReactor.handleKey(key);
+            }
+        }
+    }
+
+    private void acceptClient(final SelectionKey key) throws IOException {
+        final ServerSocketChannel server = (ServerSocketChannel) key.channel();
+        final Listener listener = (Listener) key.attachment();
+
+        final SocketChannel channel;
+        try {
+            channel = server.accept();
+        } catch (IOException ex) {
+            // Écouteur retiré entre la sélection et l'acceptation.
+            LOGGER.debug("Unable to accept a connection on " + listener.getEndpoint(), ex);
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+
+        if (!listener.getLimiter().tryAcquire(channel)) {
+            refuse(channel);
+            return;
+        }
+
+        nextReactor().register(channel, new Attachment(listener.newSession(), listener));
+    }
+
+    /**
+     * Connexion refusée : réponse 421 puis fermeture.
+     */
+    private void refuse(final SocketChannel channel) throws IOException {
+        LOGGER.debug("Connection limit reached, refusing " + channel);
+        try {
+            channel.write(MailBuilder.TOO_MANY_CONNECTIONS.duplicate());
+        } catch (IOException ex) {
+            LOGGER.debug("Unable to send refusal to " + channel, ex);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Choisit le réacteur qui servira la prochaine connexion acceptée.
+     *
+     * @return Le réacteur local si aucun worker n'est configuré, un worker
+     * sinon.
+     */
+    private Reactor nextReactor() {
+        if (workers.isEmpty()) {
+            return localReactor;
+        }
+        switch (configuration.getWorkerSelection()) {
+            case LEAST_LOADED:
+                Reactor leastLoaded = workers.get(0);
+                for (final Reactor worker : workers) {
+                    if (worker.getConnectionCount() < leastLoaded.getConnectionCount()) {
+                        leastLoaded = worker;
+                    }
+                }
+                return leastLoaded;
+            case ROUND_ROBIN:
+            default:
+                final Reactor worker = workers.get(nextWorker);
+                nextWorker = (nextWorker + 1) % workers.size();
+                return worker;
+        }
+    }
+
+}
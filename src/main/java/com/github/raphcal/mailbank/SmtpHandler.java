@@ -1,6 +1,13 @@
 package com.github.raphcal.mailbank;
 
 /**
+ * Receives the mails of a <code>MailBank</code>.
+ * <p>
+ * The body of a mail is only guaranteed to be readable until
+ * <code>mailReceived</code> returns, its temporary file is deleted then. A
+ * handler keeping the mail, or reading it from another thread later, has to
+ * call <code>mail.getBody().retain()</code> before returning and
+ * <code>close()</code> the body once done.
  *
  * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
  */
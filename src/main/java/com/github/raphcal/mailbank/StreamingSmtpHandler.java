@@ -0,0 +1,25 @@
+package com.github.raphcal.mailbank;
+
+import java.util.List;
+
+/**
+ * Receives mails while their content arrives, without waiting for the whole
+ * mail to be buffered.
+ * <p>
+ * Callbacks are made by the selector thread of the connection. They must be
+ * fast and must not block. Work that can't be done while the content arrives
+ * should be returned by <code>MailListener.endOfMessage()</code> to be run by
+ * the handler executor.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public interface StreamingSmtpHandler {
+    /**
+     * Called when the client starts sending the content of a mail.
+     *
+     * @param from Sender of the mail.
+     * @param recipients Recipients of the mail.
+     * @return The listener receiving the content of this mail.
+     */
+    MailListener mailStarted(String from, List<String> recipients);
+}
@@ -0,0 +1,122 @@
+package com.github.raphcal.mailbank;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel. Each slot holds the timeouts expiring during one tick,
+ * modulo the number of slots.
+ * <p>
+ * Not thread safe: a reactor schedules and expires its timeouts from its own
+ * selector loop.
+ *
+ * @param <T> Type of the timed out items.
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+class TimerWheel<T> {
+
+    private final long tickMillis;
+    private final ArrayDeque<Timeout<T>>[] slots;
+    private final int mask;
+
+    /**
+     * Last tick whose slot has been expired.
+     */
+    private long currentTick;
+    private int size;
+
+    /**
+     * Creates a new wheel.
+     *
+     * @param tickMillis Duration of a tick, in milliseconds.
+     * @param slotCount Number of slots, rounded up to a power of two.
+     * @param now Current time, in milliseconds.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long tickMillis, int slotCount, long now) {
+        this.tickMillis = tickMillis;
+        final int length = Integer.highestOneBit(Math.max(slotCount - 1, 1)) << 1;
+        this.slots = new ArrayDeque[length];
+        for (int index = 0; index < length; index++) {
+            slots[index] = new ArrayDeque<>();
+        }
+        this.mask = length - 1;
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Schedules the given item.
+     *
+     * @param item Item to give back when the deadline is reached.
+     * @param deadline Expiration time, in milliseconds.
+     */
+    void schedule(T item, long deadline) {
+        // Rounded up: the slot is expired once the deadline has passed.
+        final long tick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1);
+        slots[(int) (tick & mask)].add(new Timeout<>(item, deadline));
+        size++;
+    }
+
+    /**
+     * Gives every item whose deadline has been reached to the given consumer.
+     * The consumer may schedule items again.
+     *
+     * @param now Current time, in milliseconds.
+     * @param consumer Consumer of the expired items.
+     */
+    void expire(long now, Consumer<T> consumer) {
+        final long lastTick = now / tickMillis;
+        // After a long pause, every slot is visited once.
+        final long firstTick = Math.max(currentTick + 1, lastTick - mask);
+        currentTick = lastTick;
+        for (long tick = firstTick; tick <= lastTick; tick++) {
+            final ArrayDeque<Timeout<T>> slot = slots[(int) (tick & mask)];
+            if (slot.isEmpty()) {
+                continue;
+            }
+            final Iterator<Timeout<T>> iterator = slot.iterator();
+            ArrayDeque<T> expired = null;
+            while (iterator.hasNext()) {
+                final Timeout<T> timeout = iterator.next();
+                if (timeout.deadline <= now) {
+                    iterator.remove();
+                    size--;
+                    if (expired == null) {
+                        expired = new ArrayDeque<>();
+                    }
+                    expired.add(timeout.item);
+                }
+            }
+            if (expired != null) {
+                for (final T item : expired) {
+                    consumer.accept(item);
+                }
+            }
+        }
+    }
+
+    /**
+     * Time to wait before the next tick.
+     *
+     * @param now Current time, in milliseconds.
+     * @return A delay in milliseconds for <code>Selector.select(long)</code>,
+     * 0 if the wheel is empty.
+     */
+    long delayToNextTick(long now) {
+        if (size == 0) {
+            return 0;
+        }
+        return Math.max(1, (now / tickMillis + 1) * tickMillis - now);
+    }
+
+    private static class Timeout<T> {
+        private final T item;
+        private final long deadline;
+
+        Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.raphcal.mailbank;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.raphcal.mailbank.SmtpCheck.check;
+import static com.github.raphcal.mailbank.SmtpCheck.checkEquals;
+
+/**
+ * Checks <code>MailBank.drain</code>, with both transports:
+ * <ul>
+ * <li>a mail in progress is answered before the 421 reply,</li>
+ * <li>an idle connection is sent the 421 reply at once,</li>
+ * <li>a connection suspended by a full handler queue is ended with a 421
+ * reply once the drain timeout elapsed.</li>
+ * </ul>
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class DrainCheck {
+    private static final long DRAIN_TIMEOUT = 300;
+
+    public static void main(String[] args) throws Exception {
+        for (final MailBankConfiguration.Transport transport : MailBankConfiguration.Transport.values()) {
+            checkDrainDuringMail(transport);
+            checkDrainOfSuspendedConnection(transport);
+        }
+        System.out.println("DrainCheck: OK");
+    }
+
+    private static void checkDrainDuringMail(MailBankConfiguration.Transport transport) throws Exception {
+        final Mailbox mailbox = new Mailbox();
+        final MailBank mailBank = SmtpCheck.start(mailbox, MailBankConfiguration.builder()
+                .transport(transport)
+                .build());
+        // The drain stops the server itself.
+        CompletableFuture<Boolean> drained = null;
+        try (SmtpCheck.Client sending = new SmtpCheck.Client(mailBank);
+                SmtpCheck.Client idle = new SmtpCheck.Client(mailBank)) {
+            idle.hello();
+            sending.hello();
+            sending.send("MAIL FROM:<sender@example.com>\r\n"
+                    + "RCPT TO:<to@example.com>\r\n"
+                    + "DATA\r\n");
+            sending.expect(250, transport + ": MAIL");
+            sending.expect(250, transport + ": RCPT");
+            sending.expect(354, transport + ": DATA");
+            sending.send("Subject: Drained\r\n\r\n");
+
+            drained = CompletableFuture.supplyAsync(() -> mailBank.drain(SmtpCheck.REPLY_TIMEOUT, TimeUnit.MILLISECONDS));
+            idle.expect(421, transport + ": idle connection during the drain");
+            check(idle.isClosedByServer(), transport + ": idle connection still open");
+
+            sending.send("Body\r\n.\r\n");
+            sending.expect(250, transport + ": end of the mail during the drain");
+            sending.expect(421, transport + ": after the mail");
+            check(sending.isClosedByServer(), transport + ": connection still open after the drain");
+            check(drained.get(SmtpCheck.REPLY_TIMEOUT, TimeUnit.MILLISECONDS), transport + ": drain did not end in time");
+        } finally {
+            if (drained == null) {
+                mailBank.stop();
+            }
+        }
+        checkEquals(1, mailbox.size(), transport + ": received mails");
+        checkEquals("Drained", mailbox.getMails().get(0).getHeaders().get("Subject"), transport + ": subject");
+    }
+
+    private static void checkDrainOfSuspendedConnection(MailBankConfiguration.Transport transport) throws Exception {
+        final Mailbox mailbox = new Mailbox();
+        final CountDownLatch released = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final MailBank mailBank = SmtpCheck.start(mail -> {
+            try {
+                released.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            mailbox.mailReceived(mail);
+        }, MailBankConfiguration.builder()
+                .transport(transport)
+                .handlerExecutor(executor)
+                .handlerQueueCapacity(1)
+                .backpressure(MailBankConfiguration.Backpressure.SUSPEND_READS)
+                .build());
+        boolean draining = false;
+        try (SmtpCheck.Client client = new SmtpCheck.Client(mailBank)) {
+            client.hello();
+            client.send("MAIL FROM:<sender@example.com>\r\n"
+                    + "RCPT TO:<to@example.com>\r\n"
+                    + "DATA\r\n");
+            client.expect(250, transport + ": MAIL");
+            client.expect(250, transport + ": RCPT");
+            client.expect(354, transport + ": DATA");
+            client.send("Subject: Blocked\r\n\r\nBody\r\n.\r\n");
+            // Taken by the executor, blocked in the handler.
+            client.expect(250, transport + ": end of the blocked mail");
+
+            client.send("MAIL FROM:<sender@example.com>\r\n"
+                    + "RCPT TO:<to@example.com>\r\n"
+                    + "DATA\r\n");
+            client.expect(250, transport + ": second MAIL");
+            client.expect(250, transport + ": second RCPT");
+            client.expect(354, transport + ": second DATA");
+            // The queue is full: the connection is suspended.
+            client.send("Subject: Suspended\r\n\r\nBody\r\n.\r\n");
+
+            draining = true;
+            check(!mailBank.drain(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS), transport + ": drain ended in time with a blocked handler");
+            client.expect(421, transport + ": suspended connection after the drain timeout");
+            check(client.isClosedByServer(), transport + ": suspended connection still open");
+        } finally {
+            released.countDown();
+            if (!draining) {
+                mailBank.stop();
+            }
+            executor.shutdown();
+        }
+        check(executor.awaitTermination(SmtpCheck.REPLY_TIMEOUT, TimeUnit.MILLISECONDS), transport + ": handler still running");
+        checkEquals(1, mailbox.size(), transport + ": received mails");
+        checkEquals("Blocked", mailbox.getMails().get(0).getHeaders().get("Subject"), transport + ": subject");
+    }
+}
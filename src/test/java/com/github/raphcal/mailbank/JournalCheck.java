@@ -0,0 +1,124 @@
+package com.github.raphcal.mailbank;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static com.github.raphcal.mailbank.SmtpCheck.check;
+import static com.github.raphcal.mailbank.SmtpCheck.checkEquals;
+
+/**
+ * Checks the replay of a journal in a mailbox and its retention: replayed
+ * mails keep their age, and the segments holding only mails the mailbox
+ * would evict are deleted. Also checks that a server refuses a journal
+ * without handler executor.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class JournalCheck {
+    private static final int SEGMENT_SIZE = 1024;
+    private static final int MAIL_COUNT = 20;
+    private static final long MAX_AGE = 300;
+
+    public static void main(String[] args) throws Exception {
+        checkRetentionBySize(Files.createTempDirectory("mailbank-journal"));
+        checkRetentionByAge(Files.createTempDirectory("mailbank-journal"));
+        checkExecutorRequired(Files.createTempDirectory("mailbank-journal"));
+        System.out.println("JournalCheck: OK");
+    }
+
+    private static void checkRetentionBySize(Path directory) throws Exception {
+        try (MailJournal journal = open(directory)) {
+            for (int index = 0; index < MAIL_COUNT; index++) {
+                journal.append(mail(index));
+            }
+        }
+        final long segmentCount = fileCount(directory);
+        check(segmentCount > 3, "Mails should span several segments, found " + segmentCount);
+
+        final Mailbox mailbox = new Mailbox(3, 0, TimeUnit.MILLISECONDS);
+        try (MailJournal journal = open(directory)) {
+            journal.setRetention(3, 0, TimeUnit.MILLISECONDS);
+            journal.replay(mailbox);
+            check(journal.size() >= 3 && journal.size() < MAIL_COUNT, "Records kept: " + journal.size());
+        }
+        check(fileCount(directory) < segmentCount, "No segment deleted");
+        checkEquals(3, mailbox.size(), "Replayed mails");
+        checkEquals("Mail " + (MAIL_COUNT - 1), mailbox.getMails().get(2).getHeaders().get("Subject"), "Newest replayed mail");
+
+        // Numbering goes on after the deleted segments.
+        try (MailJournal journal = open(directory)) {
+            journal.append(mail(MAIL_COUNT));
+            final Mailbox reopened = new Mailbox();
+            journal.replay(reopened);
+            checkEquals("Mail " + MAIL_COUNT, reopened.getMails().get(reopened.size() - 1).getHeaders().get("Subject"), "Mail appended after the retention");
+        }
+        delete(directory);
+    }
+
+    private static void checkRetentionByAge(Path directory) throws Exception {
+        try (MailJournal journal = open(directory)) {
+            for (int index = 0; index < MAIL_COUNT; index++) {
+                journal.append(mail(index));
+            }
+        }
+        Thread.sleep(MAX_AGE * 2);
+
+        final Mailbox mailbox = new Mailbox(0, MAX_AGE, TimeUnit.MILLISECONDS);
+        try (MailJournal journal = open(directory)) {
+            journal.append(mail(MAIL_COUNT));
+            journal.setRetention(0, MAX_AGE, TimeUnit.MILLISECONDS);
+            journal.replay(mailbox);
+            checkEquals(1, journal.size(), "Records kept");
+        }
+        checkEquals(1L, fileCount(directory), "Segments kept");
+        checkEquals(1, mailbox.size(), "Replayed mails");
+        checkEquals("Mail " + MAIL_COUNT, mailbox.getMails().get(0).getHeaders().get("Subject"), "Replayed mail");
+        delete(directory);
+    }
+
+    private static void checkExecutorRequired(Path directory) throws Exception {
+        try (MailJournal journal = open(directory)) {
+            try {
+                new MailBank(0, new Mailbox(), MailBankConfiguration.builder()
+                        .journal(journal)
+                        .build());
+                throw new AssertionError("Journal accepted without handler executor");
+            } catch (IllegalArgumentException ex) {
+                // Refused as expected.
+            }
+        }
+        delete(directory);
+    }
+
+    private static MailJournal open(Path directory) throws IOException {
+        return MailJournal.open(directory, SEGMENT_SIZE, 0, TimeUnit.MILLISECONDS);
+    }
+
+    private static Mail mail(int index) {
+        final MailHeaders headers = new MailHeaders(1);
+        headers.put("Subject", "Mail " + index);
+        final byte[] body = new byte[300];
+        Arrays.fill(body, (byte) 'a');
+        return new Mail("sender@example.com", Collections.singletonList("to@example.com"), null, null, headers, null, MailBody.inMemory(body));
+    }
+
+    private static long fileCount(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (final Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.raphcal.mailbank;
+
+import java.util.Arrays;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+
+import static com.github.raphcal.mailbank.SmtpCheck.check;
+import static com.github.raphcal.mailbank.SmtpCheck.checkEquals;
+
+/**
+ * Checks the connection limit and the idle timeout: refused and idle
+ * clients are sent a 421 reply and disconnected. Also checks that lines
+ * longer than the limit are refused without closing the connection. Every
+ * check is run with both transports.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class LimitsCheck {
+    private static final long IDLE_TIMEOUT = 300;
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    public static void main(String[] args) throws Exception {
+        for (final MailBankConfiguration.Transport transport : MailBankConfiguration.Transport.values()) {
+            checkMaxConnections(transport);
+            checkIdleTimeout(transport);
+            checkLineLength(transport);
+        }
+        System.out.println("LimitsCheck: OK");
+    }
+
+    private static void checkMaxConnections(MailBankConfiguration.Transport transport) throws Exception {
+        final MailBank mailBank = SmtpCheck.start(new Mailbox(), MailBankConfiguration.builder()
+                .transport(transport)
+                .maxConnections(1)
+                .build());
+        try (SmtpCheck.Client first = new SmtpCheck.Client(mailBank)) {
+            first.hello();
+            try (SmtpCheck.Client second = new SmtpCheck.Client(mailBank)) {
+                second.expect(421, transport + ": connection over the limit");
+                check(second.isClosedByServer(), transport + ": refused connection still open");
+            }
+
+            final Transport smtp = SmtpCheck.mailSession(mailBank).getTransport();
+            try {
+                smtp.connect();
+                smtp.close();
+                throw new AssertionError(transport + ": JavaMail connected over the limit");
+            } catch (MessagingException ex) {
+                // Refused as expected.
+            }
+
+            // The first connection is still served.
+            first.send("NOOP\r\n");
+            first.expect(250, transport + ": NOOP of the first connection");
+            first.send("QUIT\r\n");
+            first.expect(221, transport + ": QUIT");
+            check(first.isClosedByServer(), transport + ": connection still open after QUIT");
+            checkEquals(2L, mailBank.getRefusedConnectionCount(), transport + ": refused connections");
+        } finally {
+            mailBank.stop();
+        }
+    }
+
+    private static void checkIdleTimeout(MailBankConfiguration.Transport transport) throws Exception {
+        final MailBank mailBank = SmtpCheck.start(new Mailbox(), MailBankConfiguration.builder()
+                .transport(transport)
+                .idleTimeout(IDLE_TIMEOUT)
+                .build());
+        try (SmtpCheck.Client client = new SmtpCheck.Client(mailBank)) {
+            client.hello();
+            // Nothing is sent: the reply has to come before REPLY_TIMEOUT.
+            client.expect(421, transport + ": idle connection");
+            check(client.isClosedByServer(), transport + ": idle connection still open");
+            checkEquals(1L, mailBank.getMetrics().getConnectionsTimedOut(), transport + ": timed out connections");
+        } finally {
+            mailBank.stop();
+        }
+    }
+
+    private static void checkLineLength(MailBankConfiguration.Transport transport) throws Exception {
+        final Mailbox mailbox = new Mailbox();
+        final MailBank mailBank = SmtpCheck.start(mailbox, MailBankConfiguration.builder()
+                .transport(transport)
+                .maxLineLength(MAX_LINE_LENGTH)
+                .build());
+        try (SmtpCheck.Client client = new SmtpCheck.Client(mailBank)) {
+            client.hello();
+            client.send("NOOP " + repeat('x', 2000) + "\r\n");
+            client.expect(500, transport + ": command line too long");
+            client.send("NOOP\r\n");
+            client.expect(250, transport + ": NOOP after a line too long");
+
+            client.send("MAIL FROM:<sender@example.com>\r\n"
+                    + "RCPT TO:<to@example.com>\r\n"
+                    + "DATA\r\n");
+            client.expect(250, transport + ": MAIL");
+            client.expect(250, transport + ": RCPT");
+            client.expect(354, transport + ": DATA");
+            client.send("Subject: Long line\r\n\r\n");
+            // Sent in several writes, without line feed.
+            for (int index = 0; index < 16; index++) {
+                client.send(repeat('y', MAX_LINE_LENGTH / 2));
+            }
+            client.send("\r\n.\r\n");
+            client.expect(500, transport + ": content line too long");
+
+            client.send("MAIL FROM:<sender@example.com>\r\n"
+                    + "RCPT TO:<to@example.com>\r\n"
+                    + "DATA\r\n");
+            client.expect(250, transport + ": MAIL after the refused mail");
+            client.expect(250, transport + ": RCPT after the refused mail");
+            client.expect(354, transport + ": DATA after the refused mail");
+            client.send("Subject: Short lines\r\n\r\n" + repeat('z', MAX_LINE_LENGTH) + "\r\n.\r\nQUIT\r\n");
+            client.expect(250, transport + ": mail with lines at the limit");
+            client.expect(221, transport + ": QUIT");
+        } finally {
+            mailBank.stop();
+        }
+        checkEquals(1, mailbox.size(), transport + ": received mails");
+        checkEquals("Short lines", mailbox.getMails().get(0).getHeaders().get("Subject"), transport + ": subject");
+    }
+
+    private static String repeat(char c, int count) {
+        final char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
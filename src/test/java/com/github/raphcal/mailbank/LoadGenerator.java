@@ -0,0 +1,258 @@
+package com.github.raphcal.mailbank;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends mails to an SMTP server from many concurrent connections and reports
+ * the throughput and the latency of each phase of the SMTP sessions.
+ * <p>
+ * Options are given as <code>name=value</code> arguments:
+ * <ul>
+ * <li><code>host</code>, <code>port</code>: address of the server
+ * (localhost:2525),</li>
+ * <li><code>connections</code>: number of concurrent connections (100),</li>
+ * <li><code>sessions</code>: number of sessions opened by each connection
+ * slot (10),</li>
+ * <li><code>messages</code>: number of mails sent by each session (10),</li>
+ * <li><code>bodySize</code>: size of the body of each mail in bytes (1024),</li>
+ * <li><code>recipients</code>: number of recipients of each mail (1),</li>
+ * <li><code>pipelining</code>: sends MAIL, RCPT and DATA together (true).</li>
+ * </ul>
+ * Connections are served by virtual threads when the JVM has them, by one
+ * platform thread each otherwise.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class LoadGenerator {
+
+    enum Phase {
+        CONNECT, EHLO, MAIL, RCPT, DATA, CONTENT, QUIT
+    }
+
+    private final InetSocketAddress endpoint;
+    private final int connections;
+    private final int sessions;
+    private final int messages;
+    private final int recipients;
+    private final boolean pipelining;
+    private final byte[] content;
+
+    private final Map<Phase, LatencyHistogram> latencies = new EnumMap<>(Phase.class);
+    private final LatencyHistogram transactionLatency = new LatencyHistogram();
+    private final LongAdder sentMails = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    LoadGenerator(Map<String, String> options) {
+        this.endpoint = new InetSocketAddress(options.getOrDefault("host", "localhost"),
+                Integer.parseInt(options.getOrDefault("port", "2525")));
+        this.connections = Integer.parseInt(options.getOrDefault("connections", "100"));
+        this.sessions = Integer.parseInt(options.getOrDefault("sessions", "10"));
+        this.messages = Integer.parseInt(options.getOrDefault("messages", "10"));
+        this.recipients = Integer.parseInt(options.getOrDefault("recipients", "1"));
+        this.pipelining = Boolean.parseBoolean(options.getOrDefault("pipelining", "true"));
+        this.content = content(Integer.parseInt(options.getOrDefault("bodySize", "1024")));
+        for (final Phase phase : Phase.values()) {
+            latencies.put(phase, new LatencyHistogram());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final String[] nameAndValue = arg.split("=", 2);
+            if (nameAndValue.length != 2) {
+                System.err.println("Usage: LoadGenerator [name=value]... (see the javadoc for the options)");
+                System.exit(1);
+            }
+            options.put(nameAndValue[0], nameAndValue[1]);
+        }
+        new LoadGenerator(options).run();
+    }
+
+    void run() throws InterruptedException {
+        final ExecutorService executor = newExecutor(connections);
+        final long start = System.nanoTime();
+        final List<Future<?>> tasks = new ArrayList<>();
+        for (int connection = 0; connection < connections; connection++) {
+            tasks.add(executor.submit(() -> {
+                for (int session = 0; session < sessions; session++) {
+                    try {
+                        runSession();
+                    } catch (IOException e) {
+                        failures.increment();
+                    }
+                }
+            }));
+        }
+        for (final Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (Exception e) {
+                failures.increment();
+            }
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        report(seconds);
+    }
+
+    private void runSession() throws IOException {
+        long startedAt = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.connect(endpoint);
+            final InputStream input = new BufferedInputStream(socket.getInputStream());
+            final OutputStream output = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            expect(input, 220, Phase.CONNECT, startedAt);
+
+            startedAt = send(output, "EHLO loadgenerator.example.com\r\n");
+            expect(input, 250, Phase.EHLO, startedAt);
+
+            for (int message = 0; message < messages; message++) {
+                final long transactionStartedAt = System.nanoTime();
+                if (pipelining) {
+                    final StringBuilder envelope = new StringBuilder("MAIL FROM:<sender@example.com>\r\n");
+                    for (int recipient = 0; recipient < recipients; recipient++) {
+                        envelope.append("RCPT TO:<recipient").append(recipient).append("@example.com>\r\n");
+                    }
+                    envelope.append("DATA\r\n");
+                    startedAt = send(output, envelope.toString());
+                    // Every reply is timed from the write of the whole group.
+                    expect(input, 250, Phase.MAIL, startedAt);
+                    for (int recipient = 0; recipient < recipients; recipient++) {
+                        expect(input, 250, Phase.RCPT, startedAt);
+                    }
+                    expect(input, 354, Phase.DATA, startedAt);
+                } else {
+                    startedAt = send(output, "MAIL FROM:<sender@example.com>\r\n");
+                    expect(input, 250, Phase.MAIL, startedAt);
+                    for (int recipient = 0; recipient < recipients; recipient++) {
+                        startedAt = send(output, "RCPT TO:<recipient" + recipient + "@example.com>\r\n");
+                        expect(input, 250, Phase.RCPT, startedAt);
+                    }
+                    startedAt = send(output, "DATA\r\n");
+                    expect(input, 354, Phase.DATA, startedAt);
+                }
+                startedAt = System.nanoTime();
+                output.write(content);
+                output.flush();
+                expect(input, 250, Phase.CONTENT, startedAt);
+                transactionLatency.record(System.nanoTime() - transactionStartedAt);
+                sentMails.increment();
+                sentBytes.add(content.length);
+            }
+
+            startedAt = send(output, "QUIT\r\n");
+            expect(input, 221, Phase.QUIT, startedAt);
+        }
+    }
+
+    private static long send(OutputStream output, String commands) throws IOException {
+        output.write(commands.getBytes(StandardCharsets.US_ASCII));
+        final long sentAt = System.nanoTime();
+        output.flush();
+        return sentAt;
+    }
+
+    /**
+     * Reads a whole reply, including every line of a multiline reply, and
+     * records its latency.
+     *
+     * @throws IOException If the connection is closed or if the reply code
+     * is not the expected one.
+     */
+    private void expect(InputStream input, int expectedCode, Phase phase, long startedAt) throws IOException {
+        int code;
+        int separator;
+        do {
+            code = 0;
+            for (int digit = 0; digit < 3; digit++) {
+                code = code * 10 + input.read() - '0';
+            }
+            separator = input.read();
+            int read = separator;
+            while (read != '\n') {
+                if (read < 0) {
+                    throw new IOException("Connection closed during " + phase);
+                }
+                read = input.read();
+            }
+        } while (separator == '-');
+        latencies.get(phase).record(System.nanoTime() - startedAt);
+        if (code != expectedCode) {
+            throw new IOException("Unexpected reply " + code + " during " + phase);
+        }
+    }
+
+    private void report(double seconds) {
+        System.out.printf("%d connections, %d sessions each, %d mails per session, %d bytes per mail, %d recipients, pipelining %s%n",
+                connections, sessions, messages, content.length, recipients, pipelining ? "on" : "off");
+        System.out.printf("%d mails in %.2f s: %.0f mails/s, %.2f MB/s, %d failures%n",
+                sentMails.sum(), seconds, sentMails.sum() / seconds,
+                sentBytes.sum() / seconds / (1024 * 1024), failures.sum());
+        System.out.printf("%-12s %10s %10s %10s %10s %10s %10s%n", "Phase (us)", "count", "mean", "p50", "p99", "p999", "max");
+        for (final Phase phase : Phase.values()) {
+            print(phase.name(), latencies.get(phase).statistics());
+        }
+        print("TRANSACTION", transactionLatency.statistics());
+    }
+
+    private static void print(String name, LatencyStatistics statistics) {
+        System.out.printf("%-12s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", name, statistics.getCount(),
+                statistics.getMean(), statistics.getP50(), statistics.getP99(),
+                statistics.getP999(), statistics.getMax());
+    }
+
+    /**
+     * Builds the content of the mails, with its headers and the final dot.
+     */
+    private static byte[] content(int bodySize) {
+        final StringBuilder builder = new StringBuilder()
+                .append("From: <sender@example.com>\r\n")
+                .append("To: <recipient0@example.com>\r\n")
+                .append("Subject: Load test\r\n")
+                .append("\r\n");
+        final char[] line = new char[76];
+        Arrays.fill(line, 'x');
+        int size = 0;
+        while (size < bodySize) {
+            final int length = Math.min(line.length, bodySize - size);
+            builder.append(line, 0, length).append("\r\n");
+            size += length + 2;
+        }
+        builder.append(".\r\n");
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Creates an executor running each task on a virtual thread if the JVM
+     * supports them (Java 21+), on a platform thread otherwise.
+     */
+    private static ExecutorService newExecutor(int threads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+}
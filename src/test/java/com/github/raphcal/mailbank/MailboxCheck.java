@@ -0,0 +1,55 @@
+package com.github.raphcal.mailbank;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.raphcal.mailbank.SmtpCheck.check;
+import static com.github.raphcal.mailbank.SmtpCheck.checkEquals;
+
+/**
+ * Checks that a failing predicate of a <code>Mailbox</code> waiter only
+ * fails its own future: the mail is stored and the other waiters are
+ * completed.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class MailboxCheck {
+
+    public static void main(String[] args) throws Exception {
+        final Mailbox mailbox = new Mailbox();
+        final CompletableFuture<Mail> failing = mailbox.whenReceived(mail -> {
+            throw new IllegalArgumentException("Failing predicate");
+        });
+        final CompletableFuture<Mail> matching = mailbox.whenReceived(mail -> true);
+
+        final Mail received = mail();
+        mailbox.mailReceived(received);
+        checkEquals(1, mailbox.size(), "Stored mails");
+        check(matching.getNow(null) == received, "Matching waiter not completed");
+        check(failing.isCompletedExceptionally(), "Failing waiter not completed exceptionally");
+        try {
+            failing.get();
+        } catch (ExecutionException ex) {
+            check(ex.getCause() instanceof IllegalArgumentException, "Unexpected failure: " + ex.getCause());
+        }
+
+        // Mails already received are tested the same way.
+        try {
+            mailbox.await(mail -> {
+                throw new IllegalArgumentException("Failing predicate");
+            }, SmtpCheck.REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+            throw new AssertionError("Failing predicate ignored");
+        } catch (IllegalStateException ex) {
+            check(ex.getCause() instanceof IllegalArgumentException, "Unexpected failure: " + ex.getCause());
+        }
+        System.out.println("MailboxCheck: OK");
+    }
+
+    private static Mail mail() {
+        final MailHeaders headers = new MailHeaders(1);
+        headers.put("Subject", "Waited");
+        return new Mail("sender@example.com", Collections.singletonList("to@example.com"), null, null, headers, "Body");
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.raphcal.mailbank;
+
+import java.util.List;
+
+import static com.github.raphcal.mailbank.SmtpCheck.check;
+import static com.github.raphcal.mailbank.SmtpCheck.checkEquals;
+
+/**
+ * Checks the PIPELINING extension: commands sent together are answered in
+ * order, including across the end of a mail, with both transports.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class PipeliningCheck {
+
+    public static void main(String[] args) throws Exception {
+        for (final MailBankConfiguration.Transport transport : MailBankConfiguration.Transport.values()) {
+            checkPipelinedSession(transport);
+        }
+        System.out.println("PipeliningCheck: OK");
+    }
+
+    private static void checkPipelinedSession(MailBankConfiguration.Transport transport) throws Exception {
+        final Mailbox mailbox = new Mailbox();
+        final MailBank mailBank = SmtpCheck.start(mailbox, MailBankConfiguration.builder()
+                .transport(transport)
+                .build());
+        try (SmtpCheck.Client client = new SmtpCheck.Client(mailBank)) {
+            client.hello();
+            check(client.getLastReply().contains("250-PIPELINING"), transport + ": PIPELINING is not advertised");
+
+            client.send("MAIL FROM:<sender@example.com>\r\n"
+                    + "RCPT TO:<first@example.com>\r\n"
+                    + "RCPT TO:<second@example.com>\r\n"
+                    + "DATA\r\n");
+            client.expect(250, transport + ": MAIL");
+            client.expect(250, transport + ": first RCPT");
+            client.expect(250, transport + ": second RCPT");
+            client.expect(354, transport + ": DATA");
+
+            // End of the first mail and envelope of the second one at once.
+            client.send("Subject: First\r\n\r\nFirst body\r\n.\r\n"
+                    + "MAIL FROM:<sender@example.com>\r\n"
+                    + "RCPT TO:<third@example.com>\r\n"
+                    + "DATA\r\n");
+            client.expect(250, transport + ": end of the first mail");
+            client.expect(250, transport + ": second MAIL");
+            client.expect(250, transport + ": third RCPT");
+            client.expect(354, transport + ": second DATA");
+
+            client.send("Subject: Second\r\n\r\nSecond body\r\n.\r\nQUIT\r\n");
+            client.expect(250, transport + ": end of the second mail");
+            client.expect(221, transport + ": QUIT");
+            check(client.isClosedByServer(), transport + ": connection still open after QUIT");
+        } finally {
+            mailBank.stop();
+        }
+        final List<Mail> mails = mailbox.getMails();
+        checkEquals(2, mails.size(), transport + ": received mails");
+        checkEquals(2, mails.get(0).getTo().size(), transport + ": recipients of the first mail");
+        checkEquals("Second", mails.get(1).getHeaders().get("Subject"), transport + ": subject of the second mail");
+    }
+}
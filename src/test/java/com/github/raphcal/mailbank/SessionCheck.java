@@ -0,0 +1,94 @@
+package com.github.raphcal.mailbank;
+
+import java.util.concurrent.TimeUnit;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import static com.github.raphcal.mailbank.SmtpCheck.check;
+import static com.github.raphcal.mailbank.SmtpCheck.checkEquals;
+
+/**
+ * Checks that a session stays open across messages: a JavaMail transport
+ * sends several mails on one connection, and RSET, NOOP and commands out of
+ * sequence are answered without closing it.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class SessionCheck {
+    private static final int MAIL_COUNT = 5;
+
+    public static void main(String[] args) throws Exception {
+        for (final MailBankConfiguration.Transport transport : MailBankConfiguration.Transport.values()) {
+            checkSeveralMessages(transport);
+            checkSessionCommands(transport);
+        }
+        System.out.println("SessionCheck: OK");
+    }
+
+    private static void checkSeveralMessages(MailBankConfiguration.Transport transport) throws Exception {
+        final Mailbox mailbox = new Mailbox();
+        final MailBank mailBank = SmtpCheck.start(mailbox, MailBankConfiguration.builder()
+                .transport(transport)
+                .build());
+        try {
+            final Session session = SmtpCheck.mailSession(mailBank);
+            final Transport smtp = session.getTransport();
+            smtp.connect();
+            try {
+                for (int index = 0; index < MAIL_COUNT; index++) {
+                    final MimeMessage message = SmtpCheck.message(session, "to" + index + "@example.com", "Mail " + index, "Body " + index);
+                    smtp.sendMessage(message, message.getAllRecipients());
+                    // Sends a NOOP.
+                    check(smtp.isConnected(), transport + ": connection closed after mail " + index);
+                }
+            } finally {
+                smtp.close();
+            }
+            mailbox.awaitMailTo("to" + (MAIL_COUNT - 1) + "@example.com", SmtpCheck.REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+            checkEquals(1L, mailBank.getMetrics().getConnectionsAccepted(), transport + ": accepted connections");
+        } finally {
+            mailBank.stop();
+        }
+        checkEquals(MAIL_COUNT, mailbox.size(), transport + ": received mails");
+        for (int index = 0; index < MAIL_COUNT; index++) {
+            checkEquals("Mail " + index, mailbox.getMails().get(index).getHeaders().get("Subject"), transport + ": subject of mail " + index);
+        }
+    }
+
+    private static void checkSessionCommands(MailBankConfiguration.Transport transport) throws Exception {
+        final Mailbox mailbox = new Mailbox();
+        final MailBank mailBank = SmtpCheck.start(mailbox, MailBankConfiguration.builder()
+                .transport(transport)
+                .build());
+        try (SmtpCheck.Client client = new SmtpCheck.Client(mailBank)) {
+            client.hello();
+            client.send("DATA\r\n");
+            client.expect(503, transport + ": DATA without MAIL");
+            client.send("MAIL FROM:<sender@example.com>\r\n");
+            client.expect(250, transport + ": MAIL");
+            client.send("RSET\r\n");
+            client.expect(250, transport + ": RSET");
+            // RSET forgets the sender.
+            client.send("DATA\r\n");
+            client.expect(503, transport + ": DATA after RSET");
+            client.send("NOOP\r\n");
+            client.expect(250, transport + ": NOOP");
+
+            client.send("MAIL FROM:<sender@example.com>\r\n");
+            client.expect(250, transport + ": MAIL after RSET");
+            client.send("RCPT TO:<to@example.com>\r\n");
+            client.expect(250, transport + ": RCPT");
+            client.send("DATA\r\n");
+            client.expect(354, transport + ": DATA");
+            client.send("Subject: After RSET\r\n\r\nBody\r\n.\r\n");
+            client.expect(250, transport + ": end of the mail");
+            client.send("QUIT\r\n");
+            client.expect(221, transport + ": QUIT");
+        } finally {
+            mailBank.stop();
+        }
+        checkEquals(1, mailbox.getMails().size(), transport + ": received mails");
+        checkEquals("After RSET", mailbox.getMails().get(0).getHeaders().get("Subject"), transport + ": subject");
+    }
+}
@@ -0,0 +1,206 @@
+package com.github.raphcal.mailbank;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Support of the runnable protocol checks: servers on ephemeral ports,
+ * JavaMail sessions and a raw SMTP client reading the replies one by one.
+ * <p>
+ * A failed check throws an <code>AssertionError</code>: the JVM then exits
+ * with an error.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class SmtpCheck {
+    /**
+     * Longest wait for a reply, in milliseconds.
+     */
+    static final int REPLY_TIMEOUT = 5000;
+
+    private SmtpCheck() {
+    }
+
+    /**
+     * Starts a standalone server on an ephemeral port.
+     *
+     * @param handler Handler receiving the mails.
+     * @param configuration Options of the server.
+     * @return The started server.
+     */
+    static MailBank start(SmtpHandler handler, MailBankConfiguration configuration) {
+        final MailBank mailBank = new MailBank(0, handler, configuration);
+        mailBank.start();
+        return mailBank;
+    }
+
+    /**
+     * Creates a JavaMail session sending to the given server.
+     *
+     * @param mailBank Started server.
+     * @return A new session.
+     */
+    static Session mailSession(MailBank mailBank) {
+        final Properties properties = new Properties();
+        properties.setProperty("mail.transport.protocol", "smtp");
+        properties.setProperty("mail.smtp.host", "localhost");
+        properties.setProperty("mail.smtp.port", Integer.toString(mailBank.getEndpoint().getPort()));
+        properties.setProperty("mail.smtp.timeout", Integer.toString(REPLY_TIMEOUT));
+        return Session.getInstance(properties);
+    }
+
+    static MimeMessage message(Session session, String to, String subject, String text) throws MessagingException {
+        final MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("sender@example.com", false));
+        message.setRecipients(Message.RecipientType.TO, to);
+        message.setSubject(subject);
+        message.setText(text, "UTF-8");
+        message.saveChanges();
+        return message;
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void checkEquals(Object expected, Object actual, String message) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError(message + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    /**
+     * Raw SMTP connection. Commands are written as given, several commands
+     * may be written at once to test pipelining.
+     */
+    static class Client implements Closeable {
+        private final Socket socket;
+        private final InputStream input;
+        private final OutputStream output;
+        /**
+         * Lines of the last reply read.
+         */
+        private final List<String> lastReply = new ArrayList<>();
+
+        Client(MailBank mailBank) throws IOException {
+            socket = new Socket("localhost", mailBank.getEndpoint().getPort());
+            socket.setSoTimeout(REPLY_TIMEOUT);
+            input = new BufferedInputStream(socket.getInputStream());
+            output = socket.getOutputStream();
+        }
+
+        void send(String commands) throws IOException {
+            output.write(commands.getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+        }
+
+        /**
+         * Reads the next reply, every line of a multiline reply included.
+         *
+         * @return The code of the reply.
+         * @throws IOException If the connection is closed before a whole
+         * reply has been read.
+         */
+        int reply() throws IOException {
+            lastReply.clear();
+            String line;
+            do {
+                line = readLine();
+                if (line == null) {
+                    throw new IOException("Connection closed while waiting for a reply");
+                }
+                lastReply.add(line);
+            } while (line.length() > 3 && line.charAt(3) == '-');
+            return Integer.parseInt(line.substring(0, 3));
+        }
+
+        /**
+         * Lines of the last reply read by <code>reply()</code>.
+         *
+         * @return Every line of the reply, without line ending.
+         */
+        List<String> getLastReply() {
+            return lastReply;
+        }
+
+        /**
+         * Reads the next reply and checks its code.
+         *
+         * @param code Expected code.
+         * @param step Description of the command, for the failure message.
+         * @return The last line of the reply.
+         */
+        String expect(int code, String step) throws IOException {
+            checkEquals(code, reply(), step + " " + lastReply);
+            return lastReply.get(lastReply.size() - 1);
+        }
+
+        /**
+         * Sends the greeting commands and reads their replies.
+         */
+        void hello() throws IOException {
+            expect(220, "Greeting");
+            send("EHLO client.example.com\r\n");
+            expect(250, "EHLO");
+        }
+
+        /**
+         * Indicates if the server closed the connection, waiting at most
+         * <code>REPLY_TIMEOUT</code>. Pending replies are skipped.
+         *
+         * @return <code>true</code> at the end of the stream,
+         * <code>false</code> if the connection is still open.
+         */
+        boolean isClosedByServer() throws IOException {
+            try {
+                while (true) {
+                    final int read = input.read();
+                    if (read < 0) {
+                        return true;
+                    }
+                }
+            } catch (SocketTimeoutException ex) {
+                return false;
+            } catch (IOException ex) {
+                // Reset by the server.
+                return true;
+            }
+        }
+
+        private String readLine() throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int read;
+            while ((read = input.read()) != '\n') {
+                if (read < 0) {
+                    return line.size() > 0 ? line.toString("US-ASCII") : null;
+                }
+                if (read != '\r') {
+                    line.write(read);
+                }
+            }
+            return line.toString("US-ASCII");
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
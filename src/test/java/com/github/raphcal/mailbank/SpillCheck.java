@@ -0,0 +1,113 @@
+package com.github.raphcal.mailbank;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import static com.github.raphcal.mailbank.SmtpCheck.check;
+import static com.github.raphcal.mailbank.SmtpCheck.checkEquals;
+
+/**
+ * Checks the bodies written to temporary files: their content is decoded,
+ * and the files are deleted after the delivery unless the handler keeps
+ * the mail, like <code>Mailbox</code> until eviction.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class SpillCheck {
+    private static final int MEMORY_THRESHOLD = 1024;
+    private static final int LINE_COUNT = 1000;
+
+    public static void main(String[] args) throws Exception {
+        final Path directory = Files.createTempDirectory("mailbank-spill");
+        try {
+            checkPlainHandler(directory, false);
+            checkPlainHandler(directory, true);
+            checkCollectingHandler(directory);
+            checkMailbox(directory);
+        } finally {
+            Files.delete(directory);
+        }
+        System.out.println("SpillCheck: OK");
+    }
+
+    private static void checkPlainHandler(Path directory, boolean lazyDecoding) throws Exception {
+        final List<String> contents = Collections.synchronizedList(new ArrayList<>());
+        final MailBank mailBank = SmtpCheck.start(mail -> contents.add(mail.getContent()), configuration(directory)
+                .lazyDecoding(lazyDecoding)
+                .build());
+        try {
+            send(mailBank);
+        } finally {
+            mailBank.stop();
+        }
+        checkEquals(1, contents.size(), "lazyDecoding " + lazyDecoding + ": received mails");
+        check(contents.get(0) != null && contents.get(0).startsWith(text().substring(0, 100)),
+                "lazyDecoding " + lazyDecoding + ": content not decoded");
+        checkEquals(0L, fileCount(directory), "lazyDecoding " + lazyDecoding + ": files left after the delivery");
+    }
+
+    /**
+     * Mails kept by the handler are read after the delivery, once their
+     * body file is deleted.
+     */
+    private static void checkCollectingHandler(Path directory) throws Exception {
+        final List<Mail> mails = Collections.synchronizedList(new ArrayList<>());
+        final MailBank mailBank = SmtpCheck.start(mails::add, configuration(directory).build());
+        try {
+            send(mailBank);
+        } finally {
+            mailBank.stop();
+        }
+        checkEquals(1, mails.size(), "Collecting handler: received mails");
+        checkEquals(0L, fileCount(directory), "Collecting handler: files left after the delivery");
+        check(mails.get(0).getContent().startsWith(text().substring(0, 100)), "Collecting handler: content not decoded");
+    }
+
+    private static void checkMailbox(Path directory) throws Exception {
+        final Mailbox mailbox = new Mailbox();
+        final MailBank mailBank = SmtpCheck.start(mailbox, configuration(directory).build());
+        try {
+            send(mailBank);
+        } finally {
+            mailBank.stop();
+        }
+        checkEquals(1L, fileCount(directory), "Mailbox: files of the kept mails");
+        check(mailbox.getMails().get(0).getContent().startsWith(text().substring(0, 100)), "Mailbox: content not decoded");
+        mailbox.clear();
+        checkEquals(0L, fileCount(directory), "Mailbox: files left after clear");
+    }
+
+    private static MailBankConfiguration.MailBankConfigurationBuilder configuration(Path directory) {
+        return MailBankConfiguration.builder()
+                .memoryThreshold(MEMORY_THRESHOLD)
+                .spillDirectory(directory);
+    }
+
+    private static void send(MailBank mailBank) throws Exception {
+        final Session session = SmtpCheck.mailSession(mailBank);
+        final MimeMessage message = SmtpCheck.message(session, "to@example.com", "Spilled", text());
+        Transport.send(message);
+    }
+
+    private static String text() {
+        final StringBuilder text = new StringBuilder();
+        for (int line = 0; line < LINE_COUNT; line++) {
+            text.append("Line ").append(line).append(" of a body larger than the memory threshold.\r\n");
+        }
+        return text.toString();
+    }
+
+    private static long fileCount(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}